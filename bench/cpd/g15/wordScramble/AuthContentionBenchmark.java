@@ -0,0 +1,140 @@
+package cpd.g15.wordScramble;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Logins per second with 1, 2, 4... threads up to twice the cores, each thread logging in and out its own players.
+ * Compares the player database locks (striped) with every login taking one global write lock,
+ * as Auth did before. Every thread also retries logins of players that are already logged in, which are rejected.
+ * java -cp out cpd.g15.wordScramble.AuthContentionBenchmark [playersPerThread] [seconds]
+ */
+public class AuthContentionBenchmark {
+
+    private static final PrintStream console = System.out;
+
+    public static void main(String[] args) throws Exception {
+        int playersPerThread = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        int cores = Runtime.getRuntime().availableProcessors();
+        //The locks are measured, not the password hash (-DwordScramble.hashIterations to use another cost)
+        if (System.getProperty("wordScramble.hashIterations") == null) {
+            System.setProperty("wordScramble.hashIterations", "1");
+        }
+        //Registrations wait for their group to be committed, the players are created without waiting for the disk
+        if (System.getProperty("wordScramble.durability") == null) {
+            System.setProperty("wordScramble.durability", "none");
+            System.setProperty("wordScramble.flushInterval", "0");
+        }
+
+        //Silence the rejected login logging of the database
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Path dataDirectory = Files.createTempDirectory("authbench");
+        try {
+            Player.PlayerDatabase database = new Player.PlayerDatabase(dataDirectory);
+            int maxThreads = cores * 2;
+            for (int t = 0; t < maxThreads; t++) {
+                for (int p = 0; p < playersPerThread; p++) {
+                    database.registerPlayer(username(t, p), "password");
+                    database.signOutPlayer(username(t, p));
+                }
+            }
+
+            //Warm up
+            run(database, 1, playersPerThread, seconds, new ReentrantReadWriteLock());
+            run(database, 1, playersPerThread, seconds, null);
+
+            console.printf("%d cores, %d players per thread%n", cores, playersPerThread);
+            console.printf("%-8s | %18s | %18s%n", "Threads", "Global lock log/s", "Striped log/s");
+            console.println("------------------------------------------------------");
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                double global = run(database, threads, playersPerThread, seconds, new ReentrantReadWriteLock());
+                double striped = run(database, threads, playersPerThread, seconds, null);
+                console.printf("%-8d | %18.0f | %18.0f%n", threads, global, striped);
+            }
+            database.close();
+        } finally {
+            try (Stream<Path> files = Files.walk(dataDirectory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    //Logins per second, globalLock is taken around every operation when it is not null
+    private static double run(Player.PlayerDatabase database, int threads, int playersPerThread, double seconds,
+                              ReentrantReadWriteLock globalLock) throws InterruptedException {
+        LongAdder logins = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long end = System.nanoTime() + (long) (seconds * 1e9);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                int p = 0;
+                while (System.nanoTime() < end) {
+                    String username = username(thread, p);
+                    if (login(database, username, globalLock)) {
+                        logins.increment();
+                    }
+                    //Second login of the same player is rejected
+                    login(database, username, globalLock);
+                    lock(globalLock);
+                    database.signOutPlayer(username);
+                    unlock(globalLock);
+                    p = (p + 1) % playersPerThread;
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return logins.sum() / seconds;
+    }
+
+    private static boolean login(Player.PlayerDatabase database, String username, ReentrantReadWriteLock globalLock) {
+        lock(globalLock);
+        try {
+            if (database.authenticatePlayer(username, "password")) {
+                database.generateSessionToken(username);
+                return true;
+            }
+            return false;
+        } finally {
+            unlock(globalLock);
+        }
+    }
+
+    private static void lock(ReentrantReadWriteLock globalLock) {
+        if (globalLock != null) {
+            globalLock.writeLock().lock();
+        }
+    }
+
+    private static void unlock(ReentrantReadWriteLock globalLock) {
+        if (globalLock != null) {
+            globalLock.writeLock().unlock();
+        }
+    }
+
+    private static String username(int thread, int player) {
+        return "bench" + thread + "_" + player;
+    }
+}
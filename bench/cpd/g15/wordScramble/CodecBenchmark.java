@@ -0,0 +1,77 @@
+package cpd.g15.wordScramble;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Compares bytes per message and encode/decode time of the message codecs.
+ * Run from the project root after compiling src and bench:
+ * java -cp out cpd.g15.wordScramble.CodecBenchmark [iterations]
+ */
+public class CodecBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 200_000;
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        HashMap<String, String> credentials = new HashMap<>();
+        credentials.put("username", "moreira");
+        credentials.put("password", "1234");
+
+        Message[] messages = {
+                new Message(Message.Type.QUEUE_RESPONSE, "waiting"),
+                new Message(Message.Type.AUTH_RESPONSE_CHOICE, 2),
+                new Message(Message.Type.AUTH_RESPONSE_CREDENTIALS, credentials),
+                new Message(Message.Type.GAME_SERVER_PLAYER_WON, "You lost!\nPlayer moreira won\nThe word was: watermelon\nPlay again?(y/n)"),
+        };
+
+        MessageCodec[] codecs = {new SerializationCodec(), new BinaryCodec()};
+
+        System.out.printf("%-20s | %-26s | %6s | %10s | %10s%n", "Codec", "Message", "Bytes", "Encode ns", "Decode ns");
+        System.out.println("---------------------------------------------------------------------------------------");
+        for (MessageCodec codec : codecs) {
+            for (Message message : messages) {
+                run(codec, message, WARMUP_ITERATIONS);
+                Result result = run(codec, message, iterations);
+                System.out.printf("%-20s | %-26s | %6d | %10.1f | %10.1f%n",
+                        codec.getClass().getSimpleName(), message.getType(), result.bytes,
+                        result.encodeNanos / (double) iterations, result.decodeNanos / (double) iterations);
+            }
+        }
+    }
+
+    private static Result run(MessageCodec codec, Message message, int iterations) throws IOException {
+        Result result = new Result();
+        ByteBuffer frame = codec.encode(message);
+        result.bytes = frame.remaining();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            frame = codec.encode(message);
+        }
+        result.encodeNanos = System.nanoTime() - start;
+
+        long checksum = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            ByteBuffer content = frame.duplicate();
+            content.position(4);
+            checksum += codec.decode(content).getType().ordinal();
+        }
+        result.decodeNanos = System.nanoTime() - start;
+
+        //Use result so the decode loop is not optimized away
+        if (checksum == -1) {
+            System.out.println(checksum);
+        }
+        return result;
+    }
+
+    private static class Result {
+        int bytes;
+        long encodeNanos;
+        long decodeNanos;
+    }
+}
@@ -0,0 +1,141 @@
+package cpd.g15.wordScramble;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Load time of the word dictionary and cost of picking and scrambling the word of a new game,
+ * against the previous way (random index in an array of Strings, shuffle of a List of Character).
+ * Without a word list, one with random words of 3 to 15 letters is written to a temporary file.
+ * Run from the project root after compiling src and bench:
+ * java -cp out cpd.g15.wordScramble.DictionaryBenchmark [words] [picks] [wordList]
+ */
+public class DictionaryBenchmark {
+
+    private static final int LOADS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int words = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int picks = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        Path path;
+        if (args.length > 2) {
+            path = Paths.get(args[2]);
+        } else {
+            path = Files.createTempFile("words", ".txt");
+            path.toFile().deleteOnExit();
+            writeRandomWords(path, words);
+        }
+        System.out.printf("Word list %s, %d MB%n", path, Files.size(path) / (1024 * 1024));
+
+        //Load: map the file and build the offset index
+        WordDictionary dictionary = null;
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < LOADS; i++) {
+            long start = System.nanoTime();
+            dictionary = WordDictionary.open(path);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("Load: %d words, best of %d in %.1f ms%n", dictionary.size(), LOADS, best / 1e6);
+
+        //Previous way: every word as a String on the heap
+        long start = System.nanoTime();
+        List<String> lines = Files.readAllLines(path, StandardCharsets.US_ASCII);
+        String[] array = lines.toArray(new String[0]);
+        System.out.printf("Read as Strings: %d words in %.1f ms%n", array.length, (System.nanoTime() - start) / 1e6);
+        lines = null;
+
+        System.out.println();
+        System.out.printf("%-28s | %10s | %14s%n", "Pick and scramble", "ns/pick", "bytes/pick");
+        System.out.println("---------------------------------------------------------------");
+        for (WordDictionary.Tier tier : WordDictionary.Tier.values()) {
+            pickFromDictionary(dictionary, tier, picks);
+            Result result = pickFromDictionary(dictionary, tier, picks);
+            System.out.printf("%-28s | %10.1f | %14.1f%n", "dictionary " + tier + " (" + dictionary.count(tier) + ")",
+                    result.nanos / (double) picks, result.bytes / (double) picks);
+        }
+        pickFromArray(array, picks);
+        Result result = pickFromArray(array, picks);
+        System.out.printf("%-28s | %10.1f | %14.1f%n", "String array", result.nanos / (double) picks, result.bytes / (double) picks);
+    }
+
+    private static Result pickFromDictionary(WordDictionary dictionary, WordDictionary.Tier tier, int picks) {
+        long checksum = 0;
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < picks; i++) {
+            long word = dictionary.pick(tier);
+            //A game needs the word and its scramble as Strings
+            checksum += dictionary.word(word).length() + dictionary.scramble(word).charAt(0);
+        }
+        return new Result(System.nanoTime() - start, allocatedBytes() - bytes, checksum);
+    }
+
+    //Random index and shuffle of a List of Character, as games picked words before the dictionary
+    private static Result pickFromArray(String[] words, int picks) {
+        long checksum = 0;
+        Random random = new Random();
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < picks; i++) {
+            String word = words[random.nextInt(words.length)];
+            List<Character> chars = new ArrayList<>();
+            for (char c : word.toCharArray()) {
+                chars.add(c);
+            }
+            Collections.shuffle(chars);
+            StringBuilder sb = new StringBuilder();
+            for (char c : chars) {
+                sb.append(c);
+            }
+            checksum += word.length() + sb.toString().charAt(0);
+        }
+        return new Result(System.nanoTime() - start, allocatedBytes() - bytes, checksum);
+    }
+
+    //Bytes allocated by this thread, -1 if the JVM does not count them
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads) {
+            return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static void writeRandomWords(Path path, int words) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        char[] letters = new char[15];
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.US_ASCII)) {
+            for (int i = 0; i < words; i++) {
+                int length = random.nextInt(3, 16);
+                for (int j = 0; j < length; j++) {
+                    letters[j] = (char) ('a' + random.nextInt(26));
+                }
+                writer.write(letters, 0, length);
+                writer.newLine();
+            }
+        }
+    }
+
+    private static class Result {
+        final long nanos;
+        final long bytes;
+
+        Result(long nanos, long bytes, long checksum) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+            //Use checksum so the loop is not optimized away
+            if (checksum == -1) {
+                System.out.println(checksum);
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package cpd.g15.wordScramble;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the game event loops with the thread per game mode over loopback connections:
+ * memory and threads per hosted game, guess round trip latency and games played per second.
+ * Also shows the bytes the game allocates per broadcast and the views of the shared frame per broadcast:
+ * the frame is encoded once, so with more players per game only the small per player part (view and queueing) grows.
+ * java -cp out cpd.g15.wordScramble.GameExecutionBenchmark [loop|threads|both] [games] [playersPerGame] [rounds]
+ * Every player uses two file descriptors, raise the limit (ulimit -n) for large runs.
+ */
+public class GameExecutionBenchmark {
+
+    private static final int CLIENT_THREADS = 8;
+    private static final PrintStream console = System.out;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "both";
+        int games = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int playersPerGame = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        //Silence the per game logging of the server
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        console.printf("%d games, %d players per game, %d guesses per player, virtual threads: %b%n",
+                games, playersPerGame, rounds, GameThreads.isVirtual());
+        console.printf("%-8s | %12s | %12s | %8s | %10s | %10s | %10s | %10s | %11s%n",
+                "Mode", "Heap/game KB", "RSS/game KB", "Threads", "Games/s", "p50 us", "p99 us", "B/bcast", "Views/bcast");
+        console.println("------------------------------------------------------------------------------------------------------------------------");
+        if (!mode.equals("threads")) {
+            run(false, games, playersPerGame, rounds);
+        }
+        if (!mode.equals("loop")) {
+            run(true, games, playersPerGame, rounds);
+        }
+    }
+
+    private static void run(boolean threadPerGame, int games, int playersPerGame, int rounds) throws Exception {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        System.gc();
+        long heapBefore = usedHeap();
+        long rssBefore = residentMemory();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long broadcastsBefore = counter("games.broadcasts");
+        long viewsBefore = counter("messages.shared.views");
+        long broadcastBytesBefore = histogramSum("games.broadcast.bytes");
+        GamePool pool = threadPerGame ? null : new GamePool();
+
+        //Connect every player and host every game before playing
+        CountDownLatch ended = new CountDownLatch(games);
+        SocketChannel[][] clients = new SocketChannel[games][playersPerGame];
+        FrameDecoder[][] decoders = new FrameDecoder[games][playersPerGame];
+        for (int g = 0; g < games; g++) {
+            ArrayList<Player> players = new ArrayList<>();
+            for (int p = 0; p < playersPerGame; p++) {
+                clients[g][p] = SocketChannel.open(serverChannel.getLocalAddress());
+                clients[g][p].socket().setTcpNoDelay(true);
+                decoders[g][p] = new FrameDecoder();
+                SocketChannel accepted = serverChannel.accept();
+                accepted.configureBlocking(false);
+                accepted.socket().setTcpNoDelay(true);
+                Player player = new Player("bench" + g + "_" + p, "bench", 400);
+                new Session(accepted).authenticated(player);
+                players.add(player);
+            }
+            WordScrambleRunnable game = new WordScrambleRunnable(players, null);
+            game.setOnEnd(ended::countDown);
+            if (threadPerGame) {
+                GameThreads.newThread(game).start();
+            } else {
+                pool.host(game);
+            }
+        }
+        //Every game waits for its players to be ready
+        for (int g = 0; g < games; g++) {
+            for (int p = 0; p < playersPerGame; p++) {
+                receive(clients[g][p], decoders[g][p], Message.Type.GAME_START);
+            }
+        }
+
+        System.gc();
+        long heapPerGame = (usedHeap() - heapBefore) / games;
+        long rssPerGame = rssBefore < 0 ? -1 : (residentMemory() - rssBefore) / games;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+
+        //Play every game: ready, wrong guesses, leave
+        long[] latencies = new long[games * playersPerGame * rounds];
+        AtomicInteger nextGame = new AtomicInteger();
+        AtomicInteger nextLatency = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < CLIENT_THREADS; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    int g;
+                    while ((g = nextGame.getAndIncrement()) < games) {
+                        play(clients[g], decoders[g], rounds, latencies, nextLatency);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        ended.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Arrays.sort(latencies);
+        long broadcasts = Math.max(1, counter("games.broadcasts") - broadcastsBefore);
+        console.printf("%-8s | %12.1f | %12s | %8d | %10.0f | %10.1f | %10.1f | %10.1f | %11.2f%n",
+                threadPerGame ? "threads" : "loop", heapPerGame / 1024.0, rssPerGame < 0 ? "n/a" : String.format("%.1f", rssPerGame / 1024.0),
+                threads, games / seconds, latencies[latencies.length / 2] / 1e3, latencies[(int) (latencies.length * 0.99)] / 1e3,
+                (histogramSum("games.broadcast.bytes") - broadcastBytesBefore) / (double) broadcasts,
+                (counter("messages.shared.views") - viewsBefore) / (double) broadcasts);
+        serverChannel.close();
+    }
+
+    private static void play(SocketChannel[] clients, FrameDecoder[] decoders, int rounds, long[] latencies, AtomicInteger nextLatency) throws IOException {
+        for (SocketChannel client : clients) {
+            new Message(Message.Type.GAME_START_READY, "ready").writeObject(client);
+        }
+        for (int p = 0; p < clients.length; p++) {
+            receive(clients[p], decoders[p], Message.Type.GAME_SERVER_GET_NEW_WORD);
+        }
+        Message guess = new Message(Message.Type.GAME_CLIENT_WORD, "not a word");
+        for (int round = 0; round < rounds; round++) {
+            for (int p = 0; p < clients.length; p++) {
+                long sent = System.nanoTime();
+                guess.writeObject(clients[p]);
+                receive(clients[p], decoders[p], Message.Type.GAME_SERVER_GET_NEW_WORD);
+                latencies[nextLatency.getAndIncrement()] = System.nanoTime() - sent;
+            }
+        }
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+    }
+
+    private static void receive(SocketChannel client, FrameDecoder decoder, Message.Type type) throws IOException {
+        Message message;
+        while ((message = decoder.next()) == null) {
+            if (!decoder.read(client)) {
+                throw new IOException("Server closed the connection");
+            }
+        }
+        if (message.getType() != type) {
+            throw new IOException("Expected " + type + " but received " + message.getType());
+        }
+    }
+
+    //Counters and histograms are registered when their class is loaded, 0 before
+    private static long counter(String key) {
+        return Metrics.get(key) instanceof Metrics.Counter counter ? counter.get() : 0;
+    }
+
+    private static long histogramSum(String key) {
+        return Metrics.get(key) instanceof Metrics.Histogram histogram ? histogram.getSum() : 0;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    //Resident set size of the process in bytes (Linux only), -1 if unknown
+    private static long residentMemory() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not available on this system
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,573 @@
+package cpd.g15.wordScramble;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless load generator: bots that go through the whole protocol (auth, queue, game) against a running server.
+ * Each bot registers (or logs in if the username exists), waits in queue, plays with a random delay between
+ * guesses and, when the game ends, plays again or quits and connects again (by token while it is valid).
+ * Bots are non-blocking state machines, spread over a few selector threads, so thousands of them run at once.
+ *
+ * Reports throughput every few seconds and the latency percentiles of each protocol stage at the end:
+ *  - auth: connect until AUTH_SUCCESS
+ *  - queue: QUEUE_START until GAME_START
+ *  - start: GAME_START until the first word is asked (every player ready)
+ *  - guess: GAME_CLIENT_WORD until the server answers it
+ *
+ * Run from the project root after compiling src and bench, with the server started:
+ * java -cp out cpd.g15.wordScramble.LoadGenerator (port) [bots] [seconds]
+ *
+ * Options:
+ *  -DwordScramble.bots.host=host (server address, default localhost)
+ *  -DwordScramble.bots.prefix=name (usernames are prefix + bot number, default bot)
+ *  -DwordScramble.bots.ramp=n (connections opened per second, default 200)
+ *  -DwordScramble.bots.guessDelayMin=ms / guessDelayMax=ms (time to think before a guess, default 500 / 2000)
+ *  -DwordScramble.bots.accuracy=n (percent of guesses that are right, default 30)
+ *  -DwordScramble.bots.playAgain=n (percent of finished games followed by play again, default 80)
+ *  -DwordScramble.bots.loops=n (selector threads, default one per core)
+ *  -DwordScramble.dictionary=path (word list of the server, to unscramble its words, default data/words.txt)
+ */
+public class LoadGenerator {
+
+    private static final String HOST = System.getProperty("wordScramble.bots.host", "localhost");
+    private static final String PREFIX = System.getProperty("wordScramble.bots.prefix", "bot");
+    private static final String PASSWORD = "bot";
+    private static final int RAMP_PER_SECOND = Integer.getInteger("wordScramble.bots.ramp", 200);
+    private static final int GUESS_DELAY_MIN = Integer.getInteger("wordScramble.bots.guessDelayMin", 500);
+    private static final int GUESS_DELAY_MAX = Integer.getInteger("wordScramble.bots.guessDelayMax", 2000);
+    private static final int ACCURACY = Integer.getInteger("wordScramble.bots.accuracy", 30);
+    private static final int PLAY_AGAIN = Integer.getInteger("wordScramble.bots.playAgain", 80);
+    private static final int LOOPS = Integer.getInteger("wordScramble.bots.loops", Runtime.getRuntime().availableProcessors());
+
+    //Below the queue idle timeout of the server (20 s)
+    private static final long HEARTBEAT_INTERVAL = 5000;
+    private static final long RECONNECT_DELAY = 1000;
+    private static final long REPORT_INTERVAL = 5000;
+    private static final long TIMER_TICK = 10;
+
+    private static final Metrics.Histogram AUTH = Metrics.histogram("bots.auth", "Connect until authenticated");
+    private static final Metrics.Histogram QUEUE_WAIT = Metrics.histogram("bots.queue", "Queue start until game start");
+    private static final Metrics.Histogram GAME_START = Metrics.histogram("bots.start", "Game start until the first word is asked");
+    private static final Metrics.Histogram GUESS = Metrics.histogram("bots.guess", "Guess until the server answers it");
+    private static final Metrics.Counter CONNECTS = Metrics.counter("bots.connects", "Connections opened");
+    private static final Metrics.Counter AUTHS = Metrics.counter("bots.auths", "Bots authenticated");
+    private static final Metrics.Counter TOKEN_AUTHS = Metrics.counter("bots.auths.token", "Bots authenticated by token");
+    private static final Metrics.Counter AUTH_FAILURES = Metrics.counter("bots.auth.failures", "Logins refused");
+    private static final Metrics.Counter BUSY = Metrics.counter("bots.auth.busy", "Credentials sent again because the server was busy");
+    private static final Metrics.Counter GAMES = Metrics.counter("bots.games", "Games finished, counted by each bot playing");
+    private static final Metrics.Counter WINS = Metrics.counter("bots.wins", "Games won");
+    private static final Metrics.Counter GUESSES = Metrics.counter("bots.guesses", "Guesses sent");
+    private static final Metrics.Counter ROUNDS = Metrics.counter("bots.rounds", "Next rounds received (multi-round matches), counted by each bot playing");
+    private static final Metrics.Counter TIMEOUTS = Metrics.counter("bots.timeouts", "Bots disconnected for being idle in queue");
+    private static final Metrics.Counter LOST = Metrics.counter("bots.lost", "Connections closed by the server or failed");
+
+    //Scrambled word (sorted letters) to word, from the same word list as the server (-DwordScramble.dictionary)
+    //Words with the same letters keep the last one, the bots guess wrong when the server picked another
+    private static final Map<String, String> ANAGRAMS = new HashMap<>();
+    static {
+        //The server runs from src/, the load generator from the project root
+        if (System.getProperty("wordScramble.dictionary") == null) {
+            System.setProperty("wordScramble.dictionary", "data/words.txt");
+        }
+        WordDictionary.get().forEach(word -> ANAGRAMS.put(sortLetters(word), word));
+    }
+
+    enum State {
+        CONNECTING,
+        AUTH,
+        QUEUE,
+        GAME,
+        QUITTING,
+        CLOSED
+    }
+
+    //Bots in each state
+    private static final AtomicInteger[] STATES = new AtomicInteger[State.values().length];
+    static {
+        for (int i = 0; i < STATES.length; i++) {
+            STATES[i] = new AtomicInteger();
+        }
+    }
+
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: java LoadGenerator <port> [bots] [seconds]");
+            System.exit(1);
+        }
+        InetSocketAddress address = new InetSocketAddress(HOST, Integer.parseInt(args[0]));
+        int bots = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+
+        BotLoop[] loops = new BotLoop[Math.max(1, LOOPS)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new BotLoop(address);
+            loops[i].setName("BotLoop-" + i);
+            loops[i].start();
+        }
+        //Connections are spread over the ramp so the accept backlog of the server is not overrun
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < bots; i++) {
+            BotLoop loop = loops[i % loops.length];
+            Bot bot = new Bot(i, loop);
+            loop.schedule(start + i * 1000L / Math.max(1, RAMP_PER_SECOND), bot::connect);
+        }
+
+        System.out.printf("%d bots on %s, %d s, ramp %d/s, guess delay %d-%d ms, accuracy %d%%, play again %d%%%n",
+                bots, address, seconds, RAMP_PER_SECOND, GUESS_DELAY_MIN, GUESS_DELAY_MAX, ACCURACY, PLAY_AGAIN);
+        System.out.printf("%6s | %6s %6s %6s | %9s %9s %9s | %6s %6s%n",
+                "Time s", "Auth", "Queue", "Game", "Auths/s", "Games/s", "Guesses/s", "Idle", "Lost");
+        System.out.println("-------------------------------------------------------------------------------");
+        long end = start + seconds * 1000L;
+        long auths = 0, games = 0, guesses = 0;
+        long last = start;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(REPORT_INTERVAL, Math.max(1, end - System.currentTimeMillis())));
+            long now = System.currentTimeMillis();
+            double interval = (now - last) / 1000.0;
+            System.out.printf("%6d | %6d %6d %6d | %9.1f %9.1f %9.1f | %6d %6d%n",
+                    (now - start) / 1000,
+                    STATES[State.AUTH.ordinal()].get() + STATES[State.CONNECTING.ordinal()].get(),
+                    STATES[State.QUEUE.ordinal()].get(), STATES[State.GAME.ordinal()].get(),
+                    (AUTHS.get() - auths) / interval, (GAMES.get() - games) / interval, (GUESSES.get() - guesses) / interval,
+                    TIMEOUTS.get(), LOST.get());
+            auths = AUTHS.get();
+            games = GAMES.get();
+            guesses = GUESSES.get();
+            last = now;
+        }
+
+        running = false;
+        for (BotLoop loop : loops) {
+            loop.selector.wakeup();
+            loop.join();
+            loop.bots.forEach(Bot::close);
+        }
+        report(System.currentTimeMillis() - start);
+    }
+
+    private static void report(long elapsed) {
+        double seconds = elapsed / 1000.0;
+        System.out.println();
+        System.out.printf("Connections %d, authenticated %d (%d by token), refused %d, server busy %d, idle timeouts %d, lost %d%n",
+                CONNECTS.get(), AUTHS.get(), TOKEN_AUTHS.get(), AUTH_FAILURES.get(), BUSY.get(), TIMEOUTS.get(), LOST.get());
+        System.out.printf("Games played %d (%.1f/s), won %d, next rounds %d, guesses %d (%.1f/s)%n",
+                GAMES.get(), GAMES.get() / seconds, WINS.get(), ROUNDS.get(), GUESSES.get(), GUESSES.get() / seconds);
+        System.out.println();
+        System.out.printf("%-8s | %8s | %10s | %10s | %10s | %10s%n", "Stage", "Count", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        System.out.println("-------------------------------------------------------------------------");
+        for (Metrics.Histogram histogram : new Metrics.Histogram[]{AUTH, QUEUE_WAIT, GAME_START, GUESS}) {
+            System.out.printf("%-8s | %8d | %10.2f | %10.2f | %10.2f | %10.2f%n",
+                    histogram.getName().substring("bots.".length()), histogram.getCount(),
+                    histogram.getPercentile(50) / 1000.0, histogram.getPercentile(90) / 1000.0,
+                    histogram.getPercentile(99) / 1000.0, histogram.getPercentile(100) / 1000.0);
+        }
+    }
+
+    private static String sortLetters(String word) {
+        char[] letters = word.toCharArray();
+        Arrays.sort(letters);
+        return new String(letters);
+    }
+
+    //Selector thread running the bots assigned to it, their delays are kept on a timing wheel
+    private static class BotLoop extends Thread {
+        private final InetSocketAddress address;
+        private final Selector selector;
+        private final TimingWheel timers;
+        //Filled by the main thread before the bots start, closed by it after the loop stops
+        private final List<Bot> bots;
+
+        BotLoop(InetSocketAddress address) throws IOException {
+            this.address = address;
+            this.selector = Selector.open();
+            this.timers = new TimingWheel(TIMER_TICK);
+            this.bots = new ArrayList<>();
+        }
+
+        //Can be called from any thread
+        TimingWheel.Timeout schedule(long deadline, Runnable task) {
+            TimingWheel.Timeout timeout = timers.schedule(deadline, task);
+            if (Thread.currentThread() != this) {
+                selector.wakeup();
+            }
+            return timeout;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    long wakeUp = timers.nextWakeUp();
+                    long now = System.currentTimeMillis();
+                    if (wakeUp == Long.MAX_VALUE) {
+                        selector.select();
+                    } else if (wakeUp > now) {
+                        selector.select(wakeUp - now);
+                    } else {
+                        selector.selectNow();
+                    }
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        Bot bot = (Bot) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isConnectable()) {
+                            bot.connected(key);
+                        } else {
+                            if (key.isReadable()) {
+                                bot.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                bot.session.handleWritable();
+                            }
+                        }
+                    }
+                    timers.advance(System.currentTimeMillis());
+                }
+            } catch (IOException e) {
+                System.out.println("Bot loop failed: " + e.getMessage());
+            }
+        }
+    }
+
+    //One client going through auth, queue and games, only touched by the thread of its loop
+    private static class Bot {
+        private final String username;
+        private final BotLoop loop;
+        private State state;
+        private SocketChannel channel;
+        private Session session;
+        private String token;
+        private boolean registered;
+        private String word;
+        private String scrambled;
+        private boolean wordAsked;
+        private long connectStart;
+        private long queueStart;
+        private long gameStart;
+        private long guessSent;
+        private TimingWheel.Timeout guessTimer;
+        private TimingWheel.Timeout heartbeat;
+
+        Bot(int number, BotLoop loop) {
+            this.username = PREFIX + number;
+            this.loop = loop;
+            this.token = "";
+            this.state = State.CLOSED;
+            STATES[state.ordinal()].incrementAndGet();
+            loop.bots.add(this);
+        }
+
+        private void setState(State newState) {
+            STATES[state.ordinal()].decrementAndGet();
+            STATES[newState.ordinal()].incrementAndGet();
+            state = newState;
+        }
+
+        void connect() {
+            if (!running) {
+                return;
+            }
+            try {
+                setState(State.CONNECTING);
+                CONNECTS.increment();
+                connectStart = System.nanoTime();
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(loop.address)) {
+                    connected(null);
+                } else {
+                    channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException e) {
+                lost();
+            }
+        }
+
+        void connected(SelectionKey key) {
+            try {
+                if (key != null) {
+                    channel.finishConnect();
+                }
+                session = new Session(channel);
+                //The session takes the key over for reads and pending writes, the bot stays attached
+                session.register(loop.selector).attach(this);
+                setState(State.AUTH);
+            } catch (IOException e) {
+                lost();
+            }
+        }
+
+        void read() {
+            boolean open;
+            try {
+                open = session.read();
+                //Messages that arrived with the end of stream are still handled
+                Message message;
+                while (state != State.CLOSED && (message = session.nextMessage()) != null) {
+                    handle(message);
+                }
+            } catch (IOException e) {
+                lost();
+                return;
+            }
+            if (!open && state != State.CLOSED) {
+                if (state == State.QUITTING) {
+                    //Server closed the connection after the quit, come back later
+                    close();
+                    reconnectLater();
+                } else {
+                    lost();
+                }
+            }
+        }
+
+        private void handle(Message message) throws IOException {
+            String payload = message.getObject() == null ? "" : message.getObject().toString();
+            switch (message.getType()) {
+                case AUTH_START:
+                    send(token.isEmpty() ? Message.Type.AUTH_START_CREDENTIALS : Message.Type.AUTH_START_TOKEN, "");
+                    break;
+                case AUTH_REQUEST_TOKEN:
+                    send(Message.Type.AUTH_RESPONSE_TOKEN, token);
+                    break;
+                case AUTH_REQUEST_CHOICE:
+                    //Asked again after an expired token
+                    token = "";
+                    session.send(new Message(Message.Type.AUTH_RESPONSE_CHOICE, registered ? 2 : 1));
+                    break;
+                case AUTH_REQUEST_CREDENTIALS:
+                    if (payload.startsWith("Username already exists")) {
+                        //Registered by an earlier run, log in instead
+                        registered = true;
+                        session.send(new Message(Message.Type.AUTH_RESPONSE_CHOICE, 2));
+                    } else if (payload.startsWith("Wrong username or password")) {
+                        //Still logged in from a connection the server has not dropped yet
+                        AUTH_FAILURES.increment();
+                        close();
+                        reconnectLater();
+                    } else if (payload.startsWith("Server busy")) {
+                        //Password checks of the server are all busy, try again later
+                        BUSY.increment();
+                        loop.schedule(System.currentTimeMillis() + RECONNECT_DELAY, this::sendCredentials);
+                    } else {
+                        sendCredentials();
+                    }
+                    break;
+                case AUTH_SUCCESS:
+                    AUTH.recordSince(connectStart);
+                    AUTHS.increment();
+                    registered = true;
+                    if (payload.contains("Token:")) {
+                        token = payload.substring(payload.indexOf("Token:") + "Token:".length());
+                    } else {
+                        TOKEN_AUTHS.increment();
+                    }
+                    break;
+                case QUEUE_START:
+                    joinedQueue();
+                    break;
+                case QUEUE_TOKEN_REFRESH:
+                    token = payload;
+                    send(Message.Type.QUEUE_TOKEN_REFRESH_OK, token);
+                    break;
+                case QUEUE_CLIENT_TIMEOUT:
+                    TIMEOUTS.increment();
+                    token = "";
+                    close();
+                    reconnectLater();
+                    break;
+                case GAME_START:
+                    if (state == State.QUEUE) {
+                        QUEUE_WAIT.recordSince(queueStart);
+                    }
+                    cancel(heartbeat);
+                    setState(State.GAME);
+                    unscramble(payload);
+                    wordAsked = false;
+                    guessSent = 0;
+                    gameStart = System.nanoTime();
+                    send(Message.Type.GAME_START_READY, "");
+                    break;
+                case GAME_SERVER_GET_NEW_WORD:
+                    if (state != State.GAME) {
+                        break;
+                    }
+                    if (!wordAsked) {
+                        wordAsked = true;
+                        GAME_START.recordSince(gameStart);
+                    }
+                    answered();
+                    scheduleGuess();
+                    break;
+                case GAME_SERVER_NEXT_ROUND:
+                    //Round guessed by someone, the next word comes with it
+                    if (state == State.GAME) {
+                        answered();
+                        ROUNDS.increment();
+                        unscramble(payload);
+                        scheduleGuess();
+                    }
+                    break;
+                case GAME_SERVER_CORRECT_WORD:
+                    if (state == State.GAME) {
+                        answered();
+                        WINS.increment();
+                        gameEnded();
+                    }
+                    break;
+                case GAME_SERVER_PLAYER_WON, GAME_SERVER_PLAYER_DISCONNECTED:
+                    //Messages of a game the bot already left are ignored
+                    if (state == State.GAME) {
+                        gameEnded();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void sendCredentials() {
+            if (state != State.AUTH) {
+                return;
+            }
+            HashMap<String, String> credentials = new HashMap<>();
+            credentials.put("username", username);
+            credentials.put("password", PASSWORD);
+            try {
+                session.send(new Message(Message.Type.AUTH_RESPONSE_CREDENTIALS, credentials));
+            } catch (IOException e) {
+                lost();
+            }
+        }
+
+        private void joinedQueue() {
+            setState(State.QUEUE);
+            queueStart = System.nanoTime();
+            cancel(heartbeat);
+            heartbeat = loop.schedule(System.currentTimeMillis() + HEARTBEAT_INTERVAL, this::heartbeat);
+        }
+
+        //Keeps the bot from being timed out while it waits, the server answers with QUEUE_WAITING
+        private void heartbeat() {
+            if (state != State.QUEUE) {
+                return;
+            }
+            try {
+                send(Message.Type.QUEUE_RESPONSE, "waiting");
+            } catch (IOException e) {
+                lost();
+                return;
+            }
+            heartbeat = loop.schedule(System.currentTimeMillis() + HEARTBEAT_INTERVAL, this::heartbeat);
+        }
+
+        private void guess() {
+            if (state != State.GAME) {
+                return;
+            }
+            boolean right = ThreadLocalRandom.current().nextInt(100) < ACCURACY;
+            String guess = right ? word : scrambled.equals(word) ? word + "x" : scrambled;
+            GUESSES.increment();
+            guessSent = System.nanoTime();
+            try {
+                send(Message.Type.GAME_CLIENT_WORD, guess);
+            } catch (IOException e) {
+                lost();
+            }
+        }
+
+        //Answer to the guess in flight
+        private void unscramble(String payload) {
+            scrambled = payload.substring(payload.indexOf("Scramble Word: ") + "Scramble Word: ".length()).trim();
+            word = ANAGRAMS.getOrDefault(sortLetters(scrambled), scrambled);
+        }
+
+        //A guess answered after the next round started would leave two timers, the older one is dropped
+        private void scheduleGuess() {
+            cancel(guessTimer);
+            int delay = ThreadLocalRandom.current().nextInt(GUESS_DELAY_MIN, Math.max(GUESS_DELAY_MIN, GUESS_DELAY_MAX) + 1);
+            guessTimer = loop.schedule(System.currentTimeMillis() + delay, this::guess);
+        }
+
+        private void answered() {
+            if (guessSent != 0) {
+                GUESS.recordSince(guessSent);
+                guessSent = 0;
+            }
+        }
+
+        private void gameEnded() throws IOException {
+            GAMES.increment();
+            cancel(guessTimer);
+            if (ThreadLocalRandom.current().nextInt(100) < PLAY_AGAIN) {
+                setState(State.QUEUE);
+                queueStart = System.nanoTime();
+                send(Message.Type.GAME_CLIENT_PLAY_AGAIN, "");
+            } else {
+                //Signed out, the next connection logs in with the credentials
+                token = "";
+                setState(State.QUITTING);
+                send(Message.Type.GAME_CLIENT_QUIT, "");
+            }
+        }
+
+        private void send(Message.Type type, String payload) throws IOException {
+            session.send(new Message(type, payload));
+        }
+
+        private void cancel(TimingWheel.Timeout timeout) {
+            if (timeout != null) {
+                loop.timers.cancel(timeout);
+            }
+        }
+
+        private void lost() {
+            if (running) {
+                LOST.increment();
+            }
+            //A token only brings back a player that was waiting in queue
+            if (state != State.QUEUE) {
+                token = "";
+            }
+            close();
+            reconnectLater();
+        }
+
+        private void reconnectLater() {
+            if (running) {
+                loop.schedule(System.currentTimeMillis() + RECONNECT_DELAY, this::connect);
+            }
+        }
+
+        void close() {
+            cancel(guessTimer);
+            cancel(heartbeat);
+            setState(State.CLOSED);
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                //Already closed
+            }
+        }
+    }
+}
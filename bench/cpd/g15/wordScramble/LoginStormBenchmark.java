@@ -0,0 +1,251 @@
+package cpd.g15.wordScramble;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Login storm against a running server: every client connects at the same time and logs in with
+ * username and password, as when all the players come back after a restart.
+ * Reports the logins per second and the latency percentiles of the handshake (connect until AUTH_SUCCESS)
+ * and of the first message (connect until AUTH_START). The second one shows whether the auth reactors
+ * keep serving new connections while the passwords are hashed.
+ * The first round registers the players (or logs them in if they exist), the next rounds log them in again.
+ *
+ * Run from the project root after compiling src and bench, with the server started, for example
+ * once with the default credential pool and once with -DwordScramble.hashThreads=0 (hashing on the reactors):
+ * java -cp out cpd.g15.wordScramble.LoginStormBenchmark (port) [clients] [rounds]
+ */
+public class LoginStormBenchmark {
+
+    private static final String PREFIX = System.getProperty("wordScramble.bots.prefix", "storm");
+    private static final String PASSWORD = "storm";
+    //Time given to the server to see the previous round disconnect
+    private static final long ROUND_PAUSE = 1000;
+    private static final long RETRY_DELAY = 100;
+    //Clients not logged in by then are counted as failed
+    private static final long HANDSHAKE_TIMEOUT = 30000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: java LoginStormBenchmark <port> [clients] [rounds]");
+            System.exit(1);
+        }
+        InetSocketAddress address = new InetSocketAddress("localhost", Integer.parseInt(args[0]));
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        System.out.printf("%d clients on %s%n", clients, address);
+        System.out.printf("%-5s | %8s | %8s | %6s | %6s | %10s | %10s | %10s | %12s%n",
+                "Round", "Time s", "Login/s", "Busy", "Failed", "p50 ms", "p99 ms", "max ms", "start p99 ms");
+        System.out.println("------------------------------------------------------------------------------------------------");
+        for (int round = 0; round < rounds; round++) {
+            Storm storm = new Storm(address, clients, round, round == 0);
+            storm.run();
+            double seconds = storm.elapsedNanos / 1e9;
+            System.out.printf("%-5d | %8.2f | %8.1f | %6d | %6d | %10.2f | %10.2f | %10.2f | %12.2f%n",
+                    round, seconds, storm.logins / seconds, storm.busy, storm.failed,
+                    storm.handshake.getPercentile(50) / 1000.0, storm.handshake.getPercentile(99) / 1000.0,
+                    storm.handshake.getPercentile(100) / 1000.0, storm.firstMessage.getPercentile(99) / 1000.0);
+            Thread.sleep(ROUND_PAUSE);
+        }
+    }
+
+    //One round: all the clients connect, log in and disconnect
+    private static class Storm {
+        private final InetSocketAddress address;
+        private final int clients;
+        private final boolean register;
+        private final Selector selector;
+        private final TimingWheel timers;
+        private final Metrics.Histogram handshake;
+        private final Metrics.Histogram firstMessage;
+        private int done;
+        private int logins;
+        private int busy;
+        private int failed;
+        private long elapsedNanos;
+
+        Storm(InetSocketAddress address, int clients, int round, boolean register) throws IOException {
+            this.address = address;
+            this.clients = clients;
+            this.register = register;
+            this.selector = Selector.open();
+            this.timers = new TimingWheel(10);
+            this.handshake = Metrics.histogram("storm.handshake." + round, "Connect until AUTH_SUCCESS");
+            this.firstMessage = Metrics.histogram("storm.start." + round, "Connect until AUTH_START");
+        }
+
+        void run() throws IOException {
+            long start = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                StormClient client = new StormClient(this, PREFIX + i);
+                client.connect();
+            }
+            while (done < clients) {
+                long wakeUp = timers.nextWakeUp();
+                long now = System.currentTimeMillis();
+                if (wakeUp == Long.MAX_VALUE) {
+                    selector.select();
+                } else if (wakeUp > now) {
+                    selector.select(wakeUp - now);
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    StormClient client = (StormClient) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isConnectable()) {
+                        client.connected();
+                    } else {
+                        if (key.isReadable()) {
+                            client.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            client.session.handleWritable();
+                        }
+                    }
+                }
+                timers.advance(System.currentTimeMillis());
+            }
+            elapsedNanos = System.nanoTime() - start;
+            selector.close();
+        }
+    }
+
+    private static class StormClient {
+        private final Storm storm;
+        private final String username;
+        private boolean register;
+        private SocketChannel channel;
+        private Session session;
+        private long connectStart;
+        private boolean started;
+        private boolean finished;
+
+        StormClient(Storm storm, String username) {
+            this.storm = storm;
+            this.username = username;
+            this.register = storm.register;
+        }
+
+        void connect() {
+            try {
+                connectStart = System.nanoTime();
+                storm.timers.schedule(System.currentTimeMillis() + HANDSHAKE_TIMEOUT, () -> finish(false));
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(storm.address)) {
+                    connected();
+                } else {
+                    channel.register(storm.selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException e) {
+                finish(false);
+            }
+        }
+
+        void connected() {
+            try {
+                channel.finishConnect();
+                session = new Session(channel);
+                session.register(storm.selector).attach(this);
+            } catch (IOException e) {
+                finish(false);
+            }
+        }
+
+        void read() {
+            try {
+                boolean open = session.read();
+                Message message;
+                while (!finished && (message = session.nextMessage()) != null) {
+                    handle(message);
+                }
+                if (!open) {
+                    finish(false);
+                }
+            } catch (IOException e) {
+                finish(false);
+            }
+        }
+
+        private void handle(Message message) throws IOException {
+            String payload = message.getObject() == null ? "" : message.getObject().toString();
+            switch (message.getType()) {
+                case AUTH_START:
+                    if (!started) {
+                        started = true;
+                        storm.firstMessage.recordSince(connectStart);
+                    }
+                    session.send(new Message(Message.Type.AUTH_START_CREDENTIALS, ""));
+                    break;
+                case AUTH_REQUEST_CHOICE:
+                    session.send(new Message(Message.Type.AUTH_RESPONSE_CHOICE, register ? 1 : 2));
+                    break;
+                case AUTH_REQUEST_CREDENTIALS:
+                    if (payload.startsWith("Username already exists")) {
+                        register = false;
+                        session.send(new Message(Message.Type.AUTH_RESPONSE_CHOICE, 2));
+                    } else if (payload.startsWith("Server busy")) {
+                        storm.busy++;
+                        storm.timers.schedule(System.currentTimeMillis() + RETRY_DELAY, this::sendCredentials);
+                    } else if (payload.startsWith("Wrong username or password")) {
+                        finish(false);
+                    } else {
+                        sendCredentials();
+                    }
+                    break;
+                case AUTH_SUCCESS:
+                    storm.handshake.recordSince(connectStart);
+                    storm.logins++;
+                    finish(true);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void sendCredentials() {
+            if (finished) {
+                return;
+            }
+            HashMap<String, String> credentials = new HashMap<>();
+            credentials.put("username", username);
+            credentials.put("password", PASSWORD);
+            try {
+                session.send(new Message(Message.Type.AUTH_RESPONSE_CREDENTIALS, credentials));
+            } catch (IOException e) {
+                finish(false);
+            }
+        }
+
+        private void finish(boolean success) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (!success) {
+                storm.failed++;
+            }
+            storm.done++;
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //Already closed
+            }
+        }
+    }
+}
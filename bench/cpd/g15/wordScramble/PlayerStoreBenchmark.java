@@ -0,0 +1,64 @@
+package cpd.g15.wordScramble;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures player store startup (open + loading every record) and in-place rating update latency.
+ * java -cp out cpd.g15.wordScramble.PlayerStoreBenchmark [players] [updates]
+ */
+public class PlayerStoreBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int players = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int updates = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        Path path = Files.createTempFile("players", ".bin");
+        Files.delete(path);
+        try {
+            //Fill store
+            long start = System.nanoTime();
+            PlayerStore store = PlayerStore.open(path);
+            for (int i = 0; i < players; i++) {
+                store.append("player" + i, "password" + i, 400 + (i % 1000));
+            }
+            store.close();
+            System.out.printf("Create %d players: %.1f ms (%d MB)%n", players,
+                    (System.nanoTime() - start) / 1e6, Files.size(path) / (1024 * 1024));
+
+            //Startup: open and read every record, as PlayerDatabase does
+            start = System.nanoTime();
+            store = PlayerStore.open(path);
+            long[] checksum = {0};
+            store.forEach((slot, username, password, elo, wins, losses, token, tokenExpiration) -> checksum[0] += elo + username.length());
+            System.out.printf("Startup (open + load %d players): %.1f ms%n", store.size(), (System.nanoTime() - start) / 1e6);
+
+            //Random in-place rating updates
+            long[] latencies = new long[updates];
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < updates; i++) {
+                int slot = random.nextInt(players);
+                long updateStart = System.nanoTime();
+                store.updateRating(slot, 400 + i % 700, i, i / 2);
+                latencies[i] = System.nanoTime() - updateStart;
+            }
+            Arrays.sort(latencies);
+            System.out.printf("Rating update: p50 %d ns, p99 %d ns, max %d ns%n",
+                    latencies[updates / 2], latencies[(int) (updates * 0.99)], latencies[updates - 1]);
+
+            start = System.nanoTime();
+            store.force();
+            System.out.printf("Force after %d updates: %.1f ms%n", updates, (System.nanoTime() - start) / 1e6);
+            store.close();
+
+            if (checksum[0] == -1) {
+                System.out.println(checksum[0]);
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package cpd.g15.wordScramble;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Compares the ranked matcher (per player tolerance, ELO bucket index) with the previous matcher,
+ * which copied the ELO ordered queue and removed from the head of the copy until it found one team per call.
+ * Players have waited between 0 and maxWaitSeconds, so their tolerances differ.
+ * java -cp out cpd.g15.wordScramble.RankedMatcherBenchmark [teamSize] [maxWaitSeconds]
+ */
+public class RankedMatcherBenchmark {
+
+    private static final int[] QUEUE_SIZES = {10_000, 100_000};
+    private static final int REPETITIONS = 5;
+    private static final int PREVIOUS_ACCEPTABLE_DIFFERENCE = RankedMatcher.INITIAL_TOLERANCE;
+
+    public static void main(String[] args) {
+        int teamSize = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int maxWaitSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        long now = System.currentTimeMillis();
+
+        System.out.printf("Team size %d, waiting up to %d s%n", teamSize, maxWaitSeconds);
+        System.out.printf("%-8s | %-30s | %8s | %12s%n", "Players", "Matcher", "Teams", "Time ms");
+        System.out.println("------------------------------------------------------------------");
+        for (int size : QUEUE_SIZES) {
+            //Warm up and measure, the queue is rebuilt every time because matched players leave it
+            double best = Double.MAX_VALUE;
+            int teams = 0;
+            for (int i = 0; i < REPETITIONS; i++) {
+                List<QueueEntry> entries = createEntries(size, now, maxWaitSeconds);
+                ConcurrentSkipListSet<QueueEntry> queue = new ConcurrentSkipListSet<>(entries);
+                EloBucketIndex index = new EloBucketIndex();
+                entries.forEach(index::add);
+                long start = System.nanoTime();
+                //Claiming a team takes it out of the queue and the index, as the Queue does
+                List<ArrayList<QueueEntry>> found = RankedMatcher.findTeams(queue, index, teamSize, now, e -> true, team -> {
+                    for (QueueEntry entry : team) {
+                        queue.remove(entry);
+                        index.remove(entry);
+                    }
+                    return true;
+                });
+                best = Math.min(best, (System.nanoTime() - start) / 1e6);
+                teams = found.size();
+            }
+            System.out.printf("%-8d | %-30s | %8d | %12.2f%n", size, "bucket index (all teams)", teams, best);
+
+            //Previous matcher, one team per call
+            TreeSet<QueueEntry> queue = createEloQueue(createEntries(size, now, maxWaitSeconds));
+            long start = System.nanoTime();
+            ArrayList<QueueEntry> team = previousMatch(queue, teamSize);
+            System.out.printf("%-8d | %-30s | %8d | %12.2f%n", size, "previous (one call)", team == null ? 0 : 1, (System.nanoTime() - start) / 1e6);
+
+            //Previous matcher called until no team is left, too slow to run on the largest queue
+            if (size <= 10_000) {
+                queue = createEloQueue(createEntries(size, now, maxWaitSeconds));
+                start = System.nanoTime();
+                teams = 0;
+                while ((team = previousMatch(queue, teamSize)) != null) {
+                    team.forEach(queue::remove);
+                    teams++;
+                }
+                System.out.printf("%-8d | %-30s | %8d | %12.2f%n", size, "previous (all teams)", teams, (System.nanoTime() - start) / 1e6);
+            }
+        }
+    }
+
+    private static List<QueueEntry> createEntries(int size, long now, int maxWaitSeconds) {
+        List<QueueEntry> entries = new ArrayList<>(size);
+        Random random = new Random(42);
+        for (int i = 0; i < size; i++) {
+            Player player = new Player("player" + i, "password", random.nextInt(2000));
+            entries.add(new QueueEntry(player, now - random.nextInt(maxWaitSeconds * 1000 + 1)));
+        }
+        return entries;
+    }
+
+    //Order of the previous ranked queue: ELO descending, join time, username
+    private static TreeSet<QueueEntry> createEloQueue(List<QueueEntry> entries) {
+        TreeSet<QueueEntry> queue = new TreeSet<>(
+                Comparator.<QueueEntry>comparingInt(QueueEntry::getElo).reversed()
+                        .thenComparing(QueueEntry::getJoinTime)
+                        .thenComparing(QueueEntry::getUsername));
+        queue.addAll(entries);
+        return queue;
+    }
+
+    private static ArrayList<QueueEntry> previousMatch(TreeSet<QueueEntry> queue, int teamSize) {
+        ArrayList<QueueEntry> activePlayers = new ArrayList<>(queue);
+        while (activePlayers.size() >= teamSize) {
+            ArrayList<QueueEntry> team = new ArrayList<>(activePlayers.subList(0, teamSize));
+            if (team.get(0).getElo() - team.get(teamSize - 1).getElo() <= PREVIOUS_ACCEPTABLE_DIFFERENCE) {
+                return team;
+            }
+            activePlayers.remove(0);
+        }
+        return null;
+    }
+}
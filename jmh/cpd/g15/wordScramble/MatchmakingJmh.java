@@ -0,0 +1,92 @@
+package cpd.g15.wordScramble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matchmaking at different queue sizes, with the selection used by Queue.matchPlayersSimple and
+ * the matcher used by Queue.matchPlayersRanked. The Queue methods themselves need connected players,
+ * so the queue and ELO index are built here the way the Queue builds them, with one in ten players
+ * not waiting (disconnected or already matched).
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class MatchmakingJmh {
+
+    private static final int TEAM_SIZE = 4;
+    private static final int MAX_WAIT_MILLIS = 300_000;
+
+    @Param({"1000", "10000", "100000"})
+    public int queueSize;
+
+    private long now;
+    private List<QueueEntry> entries;
+    private ConcurrentSkipListSet<QueueEntry> queue;
+    private EloBucketIndex index;
+
+    @Setup(Level.Trial)
+    public void createEntries() {
+        now = System.currentTimeMillis();
+        entries = new ArrayList<>(queueSize);
+        Random random = new Random(42);
+        for (int i = 0; i < queueSize; i++) {
+            Player player = new Player("player" + i, "password", random.nextInt(2000));
+            //Players not waiting are skipped by the selection
+            player.setLoggedIn(i % 10 != 0);
+            entries.add(new QueueEntry(player, now - random.nextInt(MAX_WAIT_MILLIS + 1)));
+        }
+    }
+
+    //Matched players leave the queue, so it is rebuilt before every ranked run
+    @Setup(Level.Iteration)
+    public void fillQueue() {
+        queue = new ConcurrentSkipListSet<>(entries);
+        index = new EloBucketIndex();
+        entries.forEach(index::add);
+    }
+
+    //One simple team, the queue is left as it was
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public ArrayList<QueueEntry> simpleTeam() {
+        return Queue.selectSimpleTeam(queue, TEAM_SIZE, MatchmakingJmh::isWaiting);
+    }
+
+    //Every ranked team of a full queue, claimed teams are taken out of the queue and the index
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 10)
+    public List<ArrayList<QueueEntry>> rankedTeams() {
+        return RankedMatcher.findTeams(queue, index, TEAM_SIZE, now, MatchmakingJmh::isWaiting, team -> {
+            for (QueueEntry entry : team) {
+                queue.remove(entry);
+                index.remove(entry);
+            }
+            return true;
+        });
+    }
+
+    private static boolean isWaiting(QueueEntry entry) {
+        return entry.getPlayer().getLoggedIn();
+    }
+}
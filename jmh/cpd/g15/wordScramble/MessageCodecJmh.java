@@ -0,0 +1,72 @@
+package cpd.g15.wordScramble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode time of the message codecs, for the messages sent most often.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecJmh {
+
+    @Param({"binary", "serialization"})
+    public String codec;
+
+    @Param({"QUEUE_RESPONSE", "AUTH_RESPONSE_CREDENTIALS", "GAME_SERVER_PLAYER_WON"})
+    public String type;
+
+    private MessageCodec messageCodec;
+    private Message message;
+    private ByteBuffer content;
+
+    @Setup
+    public void setup() throws IOException {
+        messageCodec = "serialization".equals(codec) ? new SerializationCodec() : new BinaryCodec();
+        switch (type) {
+            case "AUTH_RESPONSE_CREDENTIALS":
+                HashMap<String, String> credentials = new HashMap<>();
+                credentials.put("username", "moreira");
+                credentials.put("password", "1234");
+                message = new Message(Message.Type.AUTH_RESPONSE_CREDENTIALS, credentials);
+                break;
+            case "GAME_SERVER_PLAYER_WON":
+                message = new Message(Message.Type.GAME_SERVER_PLAYER_WON, "You lost!\nPlayer moreira won\nThe word was: watermelon\nPlay again?(y/n)");
+                break;
+            default:
+                message = new Message(Message.Type.QUEUE_RESPONSE, "waiting");
+        }
+        //Decode reads the frame content, without the size
+        ByteBuffer frame = messageCodec.encode(message);
+        frame.position(4);
+        content = frame.slice();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws IOException {
+        return messageCodec.encode(message);
+    }
+
+    @Benchmark
+    public Message decode() throws IOException {
+        return messageCodec.decode(content.duplicate());
+    }
+}
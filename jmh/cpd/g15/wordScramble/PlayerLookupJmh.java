@@ -0,0 +1,98 @@
+package cpd.g15.wordScramble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * PlayerDatabase lookups by username and by session token (signature check and lookup),
+ * and a password login followed by a sign out, with the cheapest password hash.
+ * The database is created in a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+//The lookups are measured, not the password hash of the logins nor the disk (registrations wait for their commit)
+@Fork(value = 1, jvmArgsAppend = {"-DwordScramble.hashIterations=1", "-DwordScramble.durability=none", "-DwordScramble.flushInterval=0"})
+public class PlayerLookupJmh {
+
+    @Param({"10000"})
+    public int players;
+
+    private Path directory;
+    private Player.PlayerDatabase database;
+    private String[] usernames;
+    private String[] tokens;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next(int bound) {
+            next = next + 1 == bound ? 0 : next + 1;
+            return next;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void createDatabase() throws IOException {
+        directory = Files.createTempDirectory("wordScrambleJmh");
+        database = new Player.PlayerDatabase(directory);
+        usernames = new String[players];
+        tokens = new String[players];
+        for (int i = 0; i < players; i++) {
+            usernames[i] = "player" + i;
+            database.registerPlayer(usernames[i], "password");
+            database.signOutPlayer(usernames[i]);
+            tokens[i] = database.generateSessionToken(usernames[i]);
+        }
+        //Failed logins print a line, keep them out of the results
+        System.setOut(new PrintStream(PrintStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDatabase() throws IOException {
+        database.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Player byUsername(Cursor cursor) {
+        return Player.PlayerDatabase.getPlayer(usernames[cursor.next(players)]);
+    }
+
+    @Benchmark
+    public Player byToken(Cursor cursor) {
+        return database.getPlayerByToken(tokens[cursor.next(players)]);
+    }
+
+    @Benchmark
+    public boolean loginAndSignOut(Cursor cursor) {
+        String username = usernames[cursor.next(players)];
+        boolean loggedIn = database.authenticatePlayer(username, "password");
+        database.signOutPlayer(username);
+        return loggedIn;
+    }
+}
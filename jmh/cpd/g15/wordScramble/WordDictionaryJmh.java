@@ -0,0 +1,48 @@
+package cpd.g15.wordScramble;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picking and scrambling the word of a new game from the word list (data/words.txt of the working directory).
+ * DictionaryBenchmark measures the load time and the cost with a million words.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WordDictionaryJmh {
+
+    @Param({"EASY", "MEDIUM", "HARD"})
+    public WordDictionary.Tier tier;
+
+    private WordDictionary dictionary;
+
+    @Setup
+    public void setUp() {
+        dictionary = WordDictionary.get();
+    }
+
+    @Benchmark
+    public long pick() {
+        return dictionary.pick(tier);
+    }
+
+    @Benchmark
+    public String pickAndScramble() {
+        return dictionary.scramble(dictionary.pick(tier));
+    }
+}
@@ -0,0 +1,8 @@
+#!/bin/sh
+#Build the JMH benchmarks and run them, results are saved to jmh/results/(commit).json
+#Extra arguments are passed to JMH, for example: jmh/run.sh MatchmakingJmh -p queueSize=1000
+cd "$(dirname "$0")/.." || exit 1
+mvn -B -q -Pjmh package -DskipTests || exit 1
+mkdir -p jmh/results
+COMMIT=$(git rev-parse --short HEAD 2>/dev/null || echo local)
+java -jar target/benchmarks.jar -rf json -rff "jmh/results/$COMMIT.json" "$@"
@@ -0,0 +1,92 @@
+package cpd.g15.wordScramble;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * System's entry point: accepts the client connections and hands them round-robin to the Auth reactors,
+ * one per core by default (-DwordScramble.authReactors). Every wake-up accepts up to ACCEPT_BATCH connections,
+ * so a burst of connections (clients coming back after a restart) costs few selects.
+ */
+public class Acceptor extends Thread {
+
+    private static final int AUTH_REACTORS = Integer.getInteger("wordScramble.authReactors", Runtime.getRuntime().availableProcessors());
+    private static final int ACCEPT_BATCH = 64;
+    private static final Metrics.Counter CONNECTIONS = Metrics.counter("connections.accepted", "Client connections accepted");
+
+    private final ServerSocketChannel serverChannel;
+    private final Auth[] reactors;
+    private int next;
+
+    public Acceptor(ServerSocketChannel serverChannel, Queue queue) throws IOException {
+        this(serverChannel, queue, AUTH_REACTORS);
+    }
+
+    public Acceptor(ServerSocketChannel serverChannel, Queue queue, int numberOfReactors) throws IOException {
+        super("Acceptor");
+        this.serverChannel = serverChannel;
+        this.reactors = new Auth[Math.max(1, numberOfReactors)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Auth(i, queue);
+            reactors[i].start();
+            Metrics.gauge("auth.reactor.load", "Connections being authenticated by each auth reactor", "reactor", reactors[i].getName(), reactors[i]::getLoad);
+        }
+    }
+
+    public void run() {
+        try {
+            Selector selector = Selector.open();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            while (true) {
+                selector.select();
+                selector.selectedKeys().clear();
+                acceptBatch();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //Accept the pending connections, up to ACCEPT_BATCH, the rest are accepted on the next wake-up
+    private void acceptBatch() {
+        for (int i = 0; i < ACCEPT_BATCH; i++) {
+            SocketChannel clientChannel;
+            try {
+                clientChannel = serverChannel.accept();
+            } catch (IOException e) {
+                //Out of file descriptors, try again on the next wake-up
+                System.out.println("Failed to accept connection: " + e.getMessage());
+                return;
+            }
+            if (clientChannel == null) {
+                return;
+            }
+            try {
+                clientChannel.configureBlocking(false);
+            } catch (IOException e) {
+                System.out.println("Client disconnected: " + e.getMessage());
+                closeQuietly(clientChannel);
+                continue;
+            }
+            CONNECTIONS.increment();
+            reactors[next].handOver(clientChannel);
+            next = (next + 1) % reactors.length;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel clientChannel) {
+        try {
+            clientChannel.close();
+        } catch (IOException e) {
+            //Already closed
+        }
+    }
+
+    public Auth[] getReactors() {
+        return reactors;
+    }
+}
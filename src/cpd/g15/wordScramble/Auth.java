@@ -1,35 +1,59 @@
 package cpd.g15.wordScramble;
 
 import java.io.IOException;
-import java.net.SocketException;
 import java.nio.channels.*;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Auth reactor: authenticates the connections handed to it by the Acceptor on its own selector.
+ * There is one reactor per core by default, logins of different reactors run in parallel
+ * (the player database and the token keys are safe to use from several threads).
+ * Passwords are checked and hashed on the CredentialPool, the reactor goes on with the handshake when the check is done.
+ */
 public class Auth extends Thread {
 
-    private final ReentrantReadWriteLock lockPlayerDB;
-    private final ServerSocketChannel serverChannel;
-    private final Queue queue;
-
-
+    private static final Metrics.Counter LOGINS = Metrics.counter("auth.logins", "Logins with username and password");
+    private static final Metrics.Counter TOKEN_LOGINS = Metrics.counter("auth.token.logins", "Logins and reconnections by token");
+    private static final Metrics.Counter REGISTRATIONS = Metrics.counter("auth.registrations", "Players registered");
+    private static final Metrics.Counter FAILURES = Metrics.counter("auth.failures", "Rejected logins, registrations and tokens");
+    private static final Metrics.Histogram LATENCY = Metrics.histogram("auth.latency", "Time to check credentials or a token and log the player in");
 
-    public Auth(ServerSocketChannel serverChannel, ReentrantReadWriteLock lockPlayerDB, Queue queue){
-        this.lockPlayerDB = lockPlayerDB;
-        this.serverChannel = serverChannel;
+    private final Selector selector;
+    private final Queue queue;
+    //Channels accepted for this reactor, registered by the reactor before selecting again
+    private final ConcurrentLinkedQueue<SocketChannel> accepted;
+    //Work handed over by other threads (finished credential checks), run before selecting again
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    //Connections being authenticated by this reactor
+    private final AtomicInteger connections;
+
+    public Auth(int id, Queue queue) throws IOException {
+        super("Auth-" + id);
+        this.selector = Selector.open();
         this.queue = queue;
+        this.accepted = new ConcurrentLinkedQueue<>();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.connections = new AtomicInteger();
+    }
 
+    //Start authenticating a new connection, called by the acceptor thread
+    public void handOver(SocketChannel clientChannel) {
+        connections.incrementAndGet();
+        accepted.add(clientChannel);
+        selector.wakeup();
     }
 
     public void run(){
 
         try{
-            Selector selector = Selector.open();
-            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-
             while (true){
                 selector.select();
+                registerAccepted();
+                runTasks();
                 Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
 
                 while (iterator.hasNext()){
@@ -39,11 +63,12 @@ public class Auth extends Thread {
                     if(!key.isValid()){
                         continue;
                     }
-                    if(key.isAcceptable()){
-                        accept(selector,serverChannel);
-                    }else if(key.isReadable()){
+                    if(key.isReadable()){
                         read(key);
                     }
+                    if(key.isValid() && key.isWritable()){
+                        ((Session) key.attachment()).handleWritable();
+                    }
                 }
 
             }
@@ -54,108 +79,109 @@ public class Auth extends Thread {
 
     private void read(SelectionKey key) throws IOException{
         SocketChannel clientChannel = (SocketChannel) key.channel();
-        Message message;
+        Session session = (Session) key.attachment();
+        boolean open;
         try {
-            message = Message.readObject(clientChannel);
-
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        } catch (SocketException e) {
-            // Handle connection reset
+            //Read everything available, it can contain several messages or only part of one
+            open = session.read();
+
+            Message message;
+            while ((message = session.nextMessage()) != null) {
+                if(message.getObject() != null && message.getObject().toString().equals("quit")){
+                    System.out.println("Client disconnected: ");
+                    close(clientChannel);
+                    return;
+                }
+                dealWithMessage(message, session, key);
+                //Channel was handed to the queue
+                if(!key.isValid()){
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // Handle connection reset or invalid frame
             System.out.println("Client disconnected: " + clientChannel);
-            clientChannel.close();
+            close(clientChannel);
             return;
         }
 
-        if(message == null || message.getObject().toString().equals("quit")){
+        if(!open){
             System.out.println("Client disconnected: ");
-            clientChannel.close();
-            return;
+            close(clientChannel);
         }
-        dealWithMessage(message,clientChannel, key);
-
     }
 
-    private void dealWithMessage(Message message, SocketChannel clientChannel, SelectionKey key) {
-        KeyAttachment keyAttachment = (KeyAttachment) key.attachment();
+    private void dealWithMessage(Message message, Session session, SelectionKey key) {
 
         try {
             switch (message.getType()){
                 case AUTH_START_TOKEN:
                     Message requestToken = new Message(Message.Type.AUTH_REQUEST_TOKEN,"");
-                    requestToken.writeObject(clientChannel);
+                    requestToken.writeObject(session);
                     break;
                 case AUTH_START_CREDENTIALS:
                     Message requestChoice = new Message(Message.Type.AUTH_REQUEST_CHOICE,"Register 1 / Login 2");
-                    requestChoice.writeObject(clientChannel);
+                    requestChoice.writeObject(session);
                     break;
                 case AUTH_RESPONSE_TOKEN:
                     //Get token
                     String tokenClient = (String) message.getObject();
                     //Check if token is valid
-                    if(checkToken(tokenClient) && authenticateByToken(tokenClient)){
+                    long tokenStart = System.nanoTime();
+                    Player tokenPlayer = checkToken(tokenClient) ? authenticateByToken(tokenClient) : null;
+                    LATENCY.recordSince(tokenStart);
+                    if(tokenPlayer != null){
+                        TOKEN_LOGINS.increment();
                         Message authSuccess = new Message(Message.Type.AUTH_SUCCESS,"Logged in by token");
-                        authSuccess.writeObject(clientChannel);
+                        authSuccess.writeObject(session);
 
                         //Cancel key to this channel
                         key.cancel();
+                        connections.decrementAndGet();
                         //Add to queue
-                        queue.resumeToQueue(tokenClient, clientChannel);
+                        session.authenticated(tokenPlayer);
+                        queue.resumeToQueue(session);
 
                     }else{
+                        FAILURES.increment();
                         Message tokenExpired = new Message(Message.Type.AUTH_REQUEST_CHOICE, "Token expired\nRegister 1 / Login 2");
-                        tokenExpired.writeObject(clientChannel);
+                        tokenExpired.writeObject(session);
                     }
                     break;
                 case AUTH_RESPONSE_CHOICE:
                     int choice = (int) message.getObject();
                     if(choice == 1){
-                        keyAttachment.getMap().put("choice","register");
+                        session.setAuthState(Session.AuthState.REGISTER);
                     }else if(choice == 2) {
-                        keyAttachment.getMap().put("choice", "login");
+                        session.setAuthState(Session.AuthState.LOGIN);
                     }
 
                     Message credentialsMessage = new Message(Message.Type.AUTH_REQUEST_CREDENTIALS,"Credentials");
-                    credentialsMessage.writeObject(clientChannel);
+                    credentialsMessage.writeObject(session);
                     break;
                 case AUTH_RESPONSE_CREDENTIALS:
+                    Session.AuthState authType = session.getAuthState();
+                    if(authType == Session.AuthState.CHECKING){
+                        //The previous credentials are still being checked
+                        break;
+                    }
+                    if(authType != Session.AuthState.REGISTER && authType != Session.AuthState.LOGIN){
+                        //Credentials before choosing register or login
+                        Message requestChoiceAgain = new Message(Message.Type.AUTH_REQUEST_CHOICE,"Register 1 / Login 2");
+                        requestChoiceAgain.writeObject(session);
+                        break;
+                    }
                     HashMap messageMap = (HashMap) message.getObject();
                     String username = (String) messageMap.get("username");
                     String password = (String) messageMap.get("password");
-                    String token = "";
-                    String authType = keyAttachment.getMap().get("choice");
-                    if(authType.equals("register")){
-                        token = registerPlayer(username,password);
-                    }else if(authType.equals("login")){
-                        token = authenticatePlayer(username,password);
-                    }
-                    //error
-                    if(token.isEmpty()) {
-                        Message messageError = null;
-                        if(authType.equals("register"))
-                            messageError = new Message(Message.Type.AUTH_REQUEST_CREDENTIALS,"Username already exists");
-                        else if(authType.equals("login")){
-                            messageError = new Message(Message.Type.AUTH_REQUEST_CREDENTIALS,"Wrong username or password");
-                        }
-                        messageError.writeObject(clientChannel);
-                    }else{
-                        Message messageSuccess;
-                        if(authType.equals("register")){
-                            messageSuccess = new Message(Message.Type.AUTH_SUCCESS,"Registered successfully\nToken:" + token);
-                        }else{
-                            messageSuccess = new Message(Message.Type.AUTH_SUCCESS,"Logged in successfully\nToken:" + token);
-                        }
-                        messageSuccess.writeObject(clientChannel);
-                        
-                        // Update player's waiting token
-                        Server.playerDatabase.updatePlayerWaitingToken(username, token);
-
-                        //CANCEL KEY TO THIS CHANNEL
-                        key.cancel();
-
-                        //Add player to queue
-                        queue.addPlayerToQueueAndRegisterChannel(username, clientChannel);
-                    }
+                    long credentialsStart = System.nanoTime();
+                    //The password hash is computed on the credential pool, the handshake goes on here when it is done
+                    session.setAuthState(Session.AuthState.CHECKING);
+                    CompletableFuture<Boolean> check = authType == Session.AuthState.REGISTER
+                            ? Server.playerDatabase.registerPlayerAsync(username, password)
+                            : Server.playerDatabase.authenticatePlayerAsync(username, password);
+                    check.whenComplete((success, error) -> execute(() ->
+                            credentialsChecked(session, key, authType, username, error == null && success, error != null, credentialsStart)));
                     break;
                 default:
                     break;
@@ -165,78 +191,114 @@ public class Auth extends Thread {
         }
     }
 
-    private void accept(Selector selector, ServerSocketChannel serverSocketChannel) throws IOException {
-        //Accept client
-        SocketChannel clientChannel = serverSocketChannel.accept();
-        clientChannel.configureBlocking(false);
-
-        //Register client for reading
-        SelectionKey key = clientChannel.register(selector, SelectionKey.OP_READ);
-
-        //Attach empty hashmap to client
-        KeyAttachment attachment = new KeyAttachment();
-        key.attach(attachment);
-
-        //Send message to request auth to client
-        Message startAuth = new Message(Message.Type.AUTH_START,"Auth Start");
-        startAuth.writeObject(clientChannel);
+    //Run a task on this reactor, can be called from any thread
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
     }
 
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
 
-
-    private boolean checkToken(String token) throws IOException {
-        //Check if token expired
-        lockPlayerDB.readLock().lock();
-        //Check if token exists
-        if(Server.playerDatabase.tokenExpiration.containsKey(token)){
-            //Get token expiration time
-            long expirationTime = Server.playerDatabase.tokenExpiration.get(token);
-            //Check if expiration time has passed
-            if(System.currentTimeMillis() < expirationTime ){
-                lockPlayerDB.readLock().unlock();
-                return true;
-            }else{
-                lockPlayerDB.readLock().unlock();
-                return false;
+    //Register the connections handed over since the last select and start their authentication
+    private void registerAccepted() {
+        SocketChannel clientChannel;
+        while ((clientChannel = accepted.poll()) != null) {
+            try {
+                //Register client for reading with a new session
+                Session session = new Session(clientChannel);
+                session.register(selector);
+
+                //Send message to request auth to client
+                Message startAuth = new Message(Message.Type.AUTH_START,"Auth Start");
+                startAuth.writeObject(session);
+            } catch (IOException e) {
+                System.out.println("Client disconnected: " + clientChannel);
+                close(clientChannel);
             }
         }
-        lockPlayerDB.readLock().unlock();
-        return false;
     }
 
-    private String registerPlayer(String username, String password){
-        String sessionToken = "";
+    private void close(SocketChannel clientChannel) {
+        connections.decrementAndGet();
+        try {
+            clientChannel.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close connection: " + e.getMessage());
+        }
+    }
 
-        lockPlayerDB.writeLock().lock();
-        if(Server.playerDatabase.registerPlayer(username,password)) {
-            sessionToken = Server.playerDatabase.generateSessionToken();
-            Server.playerDatabase.addSessionToken(username, sessionToken);
+    //Connections being authenticated, used to check the balance of the reactors
+    public int getLoad() {
+        return connections.get();
+    }
 
-        }
-        lockPlayerDB.writeLock().unlock();
-        return sessionToken;
+
+
+    private boolean checkToken(String token) {
+        //Signature, expiration and revocation are checked from the token itself, no lock needed
+        return Server.playerDatabase.tokens.verify(token) != null;
     }
 
-    private String authenticatePlayer(String username, String password)  {
-        String sessionToken = "";
+    //Result of a registration or login checked on the credential pool, run on this reactor
+    private void credentialsChecked(Session session, SelectionKey key, Session.AuthState authType, String username,
+                                    boolean success, boolean refused, long credentialsStart) {
+        LATENCY.recordSince(credentialsStart);
+        if(!session.getChannel().isOpen()){
+            //Client left while its credentials were checked
+            Player player = Player.PlayerDatabase.getPlayer(username);
+            if(success && player != null){
+                Server.playerDatabase.logOut(player);
+            }
+            return;
+        }
+        session.setAuthState(authType);
+        try {
+            if(!success) {
+                FAILURES.increment();
+                Message messageError;
+                if(refused){
+                    messageError = new Message(Message.Type.AUTH_REQUEST_CREDENTIALS,"Server busy, try again");
+                }else if(authType == Session.AuthState.REGISTER){
+                    messageError = new Message(Message.Type.AUTH_REQUEST_CREDENTIALS,"Username already exists");
+                }else{
+                    messageError = new Message(Message.Type.AUTH_REQUEST_CREDENTIALS,"Wrong username or password");
+                }
+                messageError.writeObject(session);
+                return;
+            }
+            String token = Server.playerDatabase.generateSessionToken(username);
+            (authType == Session.AuthState.REGISTER ? REGISTRATIONS : LOGINS).increment();
+            Message messageSuccess;
+            if(authType == Session.AuthState.REGISTER){
+                messageSuccess = new Message(Message.Type.AUTH_SUCCESS,"Registered successfully\nToken:" + token);
+            }else{
+                messageSuccess = new Message(Message.Type.AUTH_SUCCESS,"Logged in successfully\nToken:" + token);
+            }
+            messageSuccess.writeObject(session);
+
+            // Update player's waiting token
+            Server.playerDatabase.updatePlayerWaitingToken(username, token);
 
-        lockPlayerDB.writeLock().lock();
-        if(Server.playerDatabase.authenticatePlayer(username,password)){
-            sessionToken = Server.playerDatabase.generateSessionToken();
-            Server.playerDatabase.addSessionToken(username,sessionToken);
+            //CANCEL KEY TO THIS CHANNEL
+            key.cancel();
+            connections.decrementAndGet();
+
+            //Add player to queue
+            session.authenticated(Player.PlayerDatabase.getPlayer(username));
+            queue.addPlayerToQueueAndRegisterChannel(session);
+        } catch (IOException e) {
+            System.out.println("Client disconnected: " + session.getChannel());
+            close(session.getChannel());
         }
-        lockPlayerDB.writeLock().unlock();
-        return sessionToken;
     }
 
-    private  boolean authenticateByToken(String token){
-        lockPlayerDB.writeLock().lock();
-        if(Server.playerDatabase.authenticatePlayerByToken(token)){
-            lockPlayerDB.writeLock().unlock();
-            return true;
-        }
-        lockPlayerDB.writeLock().unlock();
-        return false;
+    private Player authenticateByToken(String token){
+        return Server.playerDatabase.authenticatePlayerByToken(token);
     }
 
 
@@ -0,0 +1,150 @@
+package cpd.g15.wordScramble;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact codec for messages.
+ * Frame layout: size (int) | type ordinal (byte) | payload tag (byte) | payload
+ * Payloads:
+ *  - STRING: length (unsigned short) + UTF-8 bytes
+ *  - INT: int
+ *  - MAP: number of entries (unsigned short) + key/value strings
+ */
+public class BinaryCodec implements MessageCodec {
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_INT = 2;
+    private static final byte TAG_MAP = 3;
+
+    private static final int MAX_LENGTH = 0xFFFF;
+    private static final Message.Type[] TYPES = Message.Type.values();
+
+    @Override
+    public ByteBuffer encode(Message message) throws IOException {
+        Object object = message.getObject();
+        ByteBuffer buffer;
+
+        if (object == null) {
+            buffer = allocateFrame(0);
+            buffer.put((byte) message.getType().ordinal()).put(TAG_NULL);
+        } else if (object instanceof String) {
+            byte[] bytes = toBytes((String) object);
+            buffer = allocateFrame(2 + bytes.length);
+            buffer.put((byte) message.getType().ordinal()).put(TAG_STRING);
+            putString(buffer, bytes);
+        } else if (object instanceof Integer) {
+            buffer = allocateFrame(4);
+            buffer.put((byte) message.getType().ordinal()).put(TAG_INT);
+            buffer.putInt((Integer) object);
+        } else if (object instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) object;
+            if (map.size() > MAX_LENGTH) {
+                throw new IOException("Map payload too large: " + map.size());
+            }
+            //Convert entries first so the frame can be allocated with the exact size
+            byte[][] entries = new byte[map.size() * 2][];
+            int payloadSize = 2;
+            int i = 0;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                entries[i] = toBytes(String.valueOf(entry.getKey()));
+                entries[i + 1] = toBytes(String.valueOf(entry.getValue()));
+                payloadSize += 4 + entries[i].length + entries[i + 1].length;
+                i += 2;
+            }
+            buffer = allocateFrame(payloadSize);
+            buffer.put((byte) message.getType().ordinal()).put(TAG_MAP);
+            buffer.putShort((short) map.size());
+            for (byte[] entry : entries) {
+                putString(buffer, entry);
+            }
+        } else {
+            throw new IOException("Unsupported payload type: " + object.getClass().getName());
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public Message decode(ByteBuffer content) throws IOException {
+        try {
+            return decodeContent(content);
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated frame");
+        }
+    }
+
+    private Message decodeContent(ByteBuffer content) throws IOException {
+        if (content.remaining() < 2) {
+            throw new StreamCorruptedException("Frame too short");
+        }
+        int typeOrdinal = content.get() & 0xFF;
+        if (typeOrdinal >= TYPES.length) {
+            throw new StreamCorruptedException("Unknown message type: " + typeOrdinal);
+        }
+        Message.Type type = TYPES[typeOrdinal];
+        byte tag = content.get();
+
+        switch (tag) {
+            case TAG_NULL:
+                return new Message(type, null);
+            case TAG_STRING:
+                return new Message(type, getString(content));
+            case TAG_INT:
+                return new Message(type, content.getInt());
+            case TAG_MAP:
+                int size = content.getShort() & 0xFFFF;
+                HashMap<String, String> map = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    map.put(getString(content), getString(content));
+                }
+                return new Message(type, map);
+            default:
+                throw new StreamCorruptedException("Unknown payload tag: " + tag);
+        }
+    }
+
+    private static ByteBuffer allocateFrame(int payloadSize) {
+        //Size prefix + type + tag + payload
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 2 + payloadSize);
+        buffer.putInt(2 + payloadSize);
+        return buffer;
+    }
+
+    private static byte[] toBytes(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_LENGTH) {
+            throw new IOException("String payload too large: " + bytes.length);
+        }
+        return bytes;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer content) throws IOException {
+        int length = content.getShort() & 0xFFFF;
+        if (length > content.remaining()) {
+            throw new StreamCorruptedException("String length exceeds frame");
+        }
+        String value;
+        if (content.hasArray()) {
+            value = new String(content.array(), content.arrayOffset() + content.position(), length, StandardCharsets.UTF_8);
+            content.position(content.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            content.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+}
@@ -6,20 +6,43 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.*;
 
 
+/**
+ * Console client. A single thread sleeps on a selector until the server sends something, a line is typed
+ * (InputClient wakes the selector) or a queue heartbeat is due, so an idle client uses no CPU.
+ * Messages are routed by the category of their type, input is taken when a prompt is waiting for it.
+ */
 public class Client {
     private static final String SERVER_ADDRESS = "localhost";
+    //Sent while waiting in queue, below the idle timeout of the server
+    private static final long HEARTBEAT_INTERVAL = 5000;
+
+    //Input the client is waiting for
+    enum Prompt {
+        NONE,
+        CHOICE,
+        USERNAME,
+        PASSWORD,
+        WORD,
+        PLAY_AGAIN
+    }
 
     private InputClient inputClient;
+    private SocketChannel clientChannel;
     private String token = "";
     private final int clientNumber;
     private boolean closeConnection = false;
     private boolean playing = false;
-
-    private final PriorityQueue<Message> messageGameQueue = new PriorityQueue<>(new MessageComparator());
+    private boolean inQueue = false;
+    private long nextHeartbeat;
+    //Lines typed before a prompt asks for them are kept by the input thread
+    private Prompt prompt = Prompt.NONE;
+    private String username;
 
     public static void main(String[] args) {
         if (args.length != 2) {
@@ -38,63 +61,73 @@ public class Client {
     }
 
     public void start(int port) {
-        try {
-            //Get token from file
-            this.token = getToken();
-            this.inputClient = new InputClient(new Scanner(System.in));
-            this.inputClient.start();
+        //Get token from file
+        this.token = getToken();
+        try (Selector selector = Selector.open(); SocketChannel clientChannel = SocketChannel.open()) {
             //Start connection
-            SocketChannel clientChannel = SocketChannel.open();
+            this.clientChannel = clientChannel;
             clientChannel.connect(new InetSocketAddress(SERVER_ADDRESS, port));
             clientChannel.configureBlocking(false);
+            clientChannel.register(selector, SelectionKey.OP_READ);
             System.out.println("Connected to server!");
-
-
-
-            try {
-                while (!closeConnection) {
-                    if(this.playing && !this.messageGameQueue.isEmpty()){
-                        Message messageToProcess = this.messageGameQueue.remove();
-                        dealWithMessageGAME(messageToProcess,clientChannel);
-                    }
-                    Message message = Message.readObject(clientChannel);
-                    if (message != null) {
-                        System.out.println(message.getObject());
-
-                        if (message.getType().toString().contains("AUTH")) {
-                            dealWithMessageAUTH(message, clientChannel);
-                        } else if (message.getType().toString().contains("QUEUE")) {
-                            dealWithMessageQUEUE(message, clientChannel);
-                        } else {
-                            if(message.getType().toString().contains("START")){
-                                dealWithMessageGAME(message,clientChannel);
-                            }else{
-                                messageGameQueue.add(message);
-                            }
-                        }
+            this.inputClient = new InputClient(System.in, selector);
+            this.inputClient.start();
+            FrameDecoder decoder = new FrameDecoder();
+
+            while (!closeConnection) {
+                //Sleep until the server sends something, a line is typed or the next heartbeat is due
+                if (inQueue) {
+                    long wait = nextHeartbeat - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        heartbeat();
+                        continue;
                     }
+                    selector.select(wait);
+                } else {
+                    selector.select();
+                }
+                selector.selectedKeys().clear();
 
+                readMessages(decoder);
+                if (!closeConnection) {
+                    handleInput();
                 }
-                this.inputClient.stopThread();
-            }catch (SocketException e){
-                System.out.println("Server went down");
-            }catch (IOException e) {
-                e.printStackTrace();
-                throw new RuntimeException(e);
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException(e);
-            } finally {
-                clientChannel.close();
             }
-
-            //Close socket
         }catch (ConnectException e) {
             System.out.println("Server down");
-        } catch (IOException e) {
+        }catch (SocketException e){
+            System.out.println("Server went down");
+        }catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private void readMessages(FrameDecoder decoder) throws IOException {
+        //Read everything available, it can contain several messages or only part of one
+        boolean open = decoder.read(clientChannel);
+        //Messages that arrived together with the end of the stream are handled before closing
+        Message message;
+        while (!closeConnection && (message = decoder.next()) != null) {
+            System.out.println(message.getObject());
+
+            switch (message.getType().getCategory()) {
+                case AUTH:
+                    dealWithMessageAUTH(message);
+                    break;
+                case QUEUE:
+                    dealWithMessageQUEUE(message);
+                    break;
+                case GAME:
+                    dealWithMessageGAME(message);
+                    break;
+            }
+        }
+        if (!open && !closeConnection) {
+            System.out.println("Server went down");
+            closeConnection();
+        }
+    }
+
     private String getToken(){
         File tokenFile = new File("client"+ clientNumber +"token");
         try {
@@ -110,217 +143,165 @@ public class Client {
         }
     }
 
+    private void saveToken() throws IOException {
+        FileWriter writer = new FileWriter("client"+ clientNumber +"token");
+        writer.write(token);
+        writer.close();
+    }
 
-    private void dealWithMessageAUTH(Message message, SocketChannel clientChannel) {
-        try {
-            Message messageToSend;
-            String input;
-            switch (message.getType()){
-                case AUTH_START:
-                    //Check if token exists
-                    if(!token.isEmpty()){
-                        //Start auth by token
-                        messageToSend = new Message(Message.Type.AUTH_START_TOKEN,"");
-                    }else{
-                        //Start auth by credentials
-                        messageToSend = new Message(Message.Type.AUTH_START_CREDENTIALS, "");
-                    }
-                    messageToSend.writeObject(clientChannel);
-                    break;
-                case AUTH_REQUEST_TOKEN:
-                    //Send token to server
-                    messageToSend = new Message(Message.Type.AUTH_RESPONSE_TOKEN,token);
-                    messageToSend.writeObject(clientChannel);
-                    break;
-                case AUTH_REQUEST_CHOICE:
-                    try {
-                        do{
-                            input = this.inputClient.getInput();
-                        }while (input == null);
-                        // Read from console
-                        //input = scanner.nextLine();
-
-                        // Verify input using regex
-                        while (!input.matches("[12]")) {
-                            System.out.println("Invalid choice, try again");
-                            do{
-                                input = this.inputClient.getInput();
-                            }while (input == null);
-                        }
-
-                        int number = Integer.parseInt(input);
-                        // Create message object Response
-                        messageToSend = new Message(Message.Type.AUTH_RESPONSE_CHOICE, number);
-                        messageToSend.writeObject(clientChannel);
-                    } catch (NoSuchElementException e) {
-                        System.out.println("Input stream closed. Quitting...");
-                        closeConnection();
-                        return;
-                    }
-                    break;
-                case AUTH_REQUEST_CREDENTIALS:
-                    try {
-                        System.out.println("Enter username:");
-                        String username,password;
-                        do{
-                            username = this.inputClient.getInput();
-                        }while (username == null);
-                        System.out.println("Enter password:");
-                        do{
-                            password = this.inputClient.getInput();
-                        }while (password == null);
-
-                        if (username.equals("quit") || password.equals("quit")) {
-                            System.out.println("Quitting...");
-                            closeConnection();
-                            return;
-                        }
-
-                        HashMap<String, String> credentials = new HashMap<>();
-                        credentials.put("username", username);
-                        credentials.put("password", password);
-                        messageToSend = new Message(Message.Type.AUTH_RESPONSE_CREDENTIALS, credentials);
-                        messageToSend.writeObject(clientChannel);
-                    } catch (NoSuchElementException e) {
-                        System.out.println("Input stream closed. Quitting...");
-                        closeConnection();
-                        return;
-                    }
-                    break;
-                case AUTH_SUCCESS:
-                    String messagePayload = (String) message.getObject();
-                    if(messagePayload.contains("Token")){
-                        this.token = messagePayload.substring(messagePayload.indexOf(":") + 1);
-                        FileWriter writer = new FileWriter("client"+ clientNumber +"token");
-                        writer.write(token);
-                        writer.close();
-                    }
-                    break;
+    private void send(Message.Type type, Object object) throws IOException {
+        new Message(type, object).writeObject(clientChannel);
+    }
 
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private void dealWithMessageAUTH(Message message) throws IOException {
+        switch (message.getType()){
+            case AUTH_START:
+                //Check if token exists
+                if(!token.isEmpty()){
+                    //Start auth by token
+                    send(Message.Type.AUTH_START_TOKEN, "");
+                }else{
+                    //Start auth by credentials
+                    send(Message.Type.AUTH_START_CREDENTIALS, "");
+                }
+                break;
+            case AUTH_REQUEST_TOKEN:
+                //Send token to server
+                send(Message.Type.AUTH_RESPONSE_TOKEN, token);
+                break;
+            case AUTH_REQUEST_CHOICE:
+                prompt = Prompt.CHOICE;
+                break;
+            case AUTH_REQUEST_CREDENTIALS:
+                System.out.println("Enter username:");
+                prompt = Prompt.USERNAME;
+                break;
+            case AUTH_SUCCESS:
+                String messagePayload = (String) message.getObject();
+                if(messagePayload.contains("Token")){
+                    this.token = messagePayload.substring(messagePayload.indexOf(":") + 1);
+                    saveToken();
+                }
+                break;
         }
     }
 
-    private void dealWithMessageQUEUE(Message message, SocketChannel clientChannel) {
-        Message messageToSend;
-        try {
-            switch (message.getType()) {
-                case QUEUE_START, QUEUE_WAITING:
-                    messageToSend = new Message(Message.Type.QUEUE_RESPONSE, "waiting");
-                    messageToSend.writeObject(clientChannel);
-                    break;
-                case QUEUE_TOKEN_REFRESH:
-                    this.token = (String) message.getObject();
-                    FileWriter writer = new FileWriter("client"+ clientNumber +"token");
-                    writer.write(token);
-                    writer.close();
-                    messageToSend = new Message(Message.Type.QUEUE_TOKEN_REFRESH_OK, "");
-                    messageToSend.writeObject(clientChannel);
-                    break;
-                case QUEUE_CLIENT_TIMEOUT:
-                    closeConnection();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void dealWithMessageQUEUE(Message message) throws IOException {
+        switch (message.getType()) {
+            case QUEUE_START:
+                //Answer once, then only every HEARTBEAT_INTERVAL (the server answers each one with QUEUE_WAITING)
+                inQueue = true;
+                heartbeat();
+                break;
+            case QUEUE_TOKEN_REFRESH:
+                this.token = (String) message.getObject();
+                saveToken();
+                //Send the saved token back so the server can check it
+                send(Message.Type.QUEUE_TOKEN_REFRESH_OK, token);
+                break;
+            case QUEUE_CLIENT_TIMEOUT:
+                closeConnection();
+                break;
         }
     }
 
-    private void dealWithMessageGAME(Message message, SocketChannel clientChannel) {
-        try {
-            //
-            Message messageToSend;
-            String input;
-            switch (message.getType()) {
-                case GAME_START:
-                    this.playing = true;
-                    messageToSend = new Message(Message.Type.GAME_START_READY, "");
-                    messageToSend.writeObject(clientChannel);
-                    break;
-                case GAME_SERVER_GET_NEW_WORD :
-                    //TODO: Try to make this non-blocking
-                    //Read word console
-                    if(this.inputClient.hasInput()){
-                        input = this.inputClient.getInput();
-                    }else{
-                        this.messageGameQueue.add(message);
-                        return;
-                    }
-                    //Read word console
-                    //input = scanner.nextLine();
-                    //Only take first word
-                    input = input.split(" ")[0];
-                    //Create message object Response
-                    if(input.equals("quit")){
-                        messageToSend = new Message(Message.Type.GAME_CLIENT_QUIT_IN_GAME, input);
-                        messageToSend.writeObject(clientChannel);
-                        closeConnection();
-                        return;
-                    }else{
-                        messageToSend = new Message(Message.Type.GAME_CLIENT_WORD, input);
-                    }
-
-                    messageToSend.writeObject(clientChannel);
-
-                    break;
-                case GAME_SERVER_CORRECT_WORD, GAME_SERVER_PLAYER_WON, GAME_SERVER_PLAYER_DISCONNECTED:
-                    this.messageGameQueue.clear();
-                    //Read word console to play again
-                    do{
-                        input = this.inputClient.getInput();
-                    }while (input == null);
+    private void dealWithMessageGAME(Message message) throws IOException {
+        //Messages of a game the player already left are ignored
+        if (!playing && message.getType() != Message.Type.GAME_START) {
+            return;
+        }
+        switch (message.getType()) {
+            case GAME_START:
+                this.playing = true;
+                this.inQueue = false;
+                prompt = Prompt.NONE;
+                send(Message.Type.GAME_START_READY, "");
+                break;
+            case GAME_SERVER_GET_NEW_WORD, GAME_SERVER_NEXT_ROUND:
+                prompt = Prompt.WORD;
+                break;
+            case GAME_SERVER_CORRECT_WORD, GAME_SERVER_PLAYER_WON, GAME_SERVER_PLAYER_DISCONNECTED:
+                //Game over, a pending word is no longer asked
+                prompt = Prompt.PLAY_AGAIN;
+                break;
+        }
+    }
 
-                    while (!input.matches("[yn]")) {
-                        System.out.println("Invalid choice, try again");
-                        do{
-                            input = this.inputClient.getInput();
-                        }while (input == null);
-                    }
+    private void heartbeat() throws IOException {
+        send(Message.Type.QUEUE_RESPONSE, "waiting");
+        nextHeartbeat = System.currentTimeMillis() + HEARTBEAT_INTERVAL;
+    }
 
-                    if(input.equals("y")){
-                        messageToSend = new Message(Message.Type.GAME_CLIENT_PLAY_AGAIN, "");
-                        messageToSend.writeObject(clientChannel);
-                        this.messageGameQueue.clear();
-                    }else{
-                        messageToSend = new Message(Message.Type.GAME_CLIENT_QUIT, "");
-                        messageToSend.writeObject(clientChannel);
-                        System.out.println("Thank you for playing");
-                        closeConnection = true;
-                    }
-                    this.messageGameQueue.clear();
-                    break;
+    //Give typed lines to the prompt waiting for them
+    private void handleInput() throws IOException {
+        String input;
+        while (prompt != Prompt.NONE && !closeConnection && (input = inputClient.getInput()) != null) {
+            answer(input);
+        }
+        if (prompt != Prompt.NONE && !closeConnection && inputClient.isClosed()) {
+            System.out.println("Input stream closed. Quitting...");
+            closeConnection();
+        }
+    }
 
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private void answer(String input) throws IOException {
+        switch (prompt) {
+            case CHOICE:
+                // Verify input using regex
+                if (!input.matches("[12]")) {
+                    System.out.println("Invalid choice, try again");
+                    return;
+                }
+                prompt = Prompt.NONE;
+                send(Message.Type.AUTH_RESPONSE_CHOICE, Integer.parseInt(input));
+                break;
+            case USERNAME:
+                username = input;
+                System.out.println("Enter password:");
+                prompt = Prompt.PASSWORD;
+                break;
+            case PASSWORD:
+                prompt = Prompt.NONE;
+                if (username.equals("quit") || input.equals("quit")) {
+                    System.out.println("Quitting...");
+                    closeConnection();
+                    return;
+                }
+                HashMap<String, String> credentials = new HashMap<>();
+                credentials.put("username", username);
+                credentials.put("password", input);
+                send(Message.Type.AUTH_RESPONSE_CREDENTIALS, credentials);
+                break;
+            case WORD:
+                prompt = Prompt.NONE;
+                //Only take first word
+                input = input.split(" ")[0];
+                if(input.equals("quit")){
+                    send(Message.Type.GAME_CLIENT_QUIT_IN_GAME, input);
+                    closeConnection();
+                }else{
+                    send(Message.Type.GAME_CLIENT_WORD, input);
+                }
+                break;
+            case PLAY_AGAIN:
+                if (!input.matches("[yn]")) {
+                    System.out.println("Invalid choice, try again");
+                    return;
+                }
+                prompt = Prompt.NONE;
+                this.playing = false;
+                if(input.equals("y")){
+                    send(Message.Type.GAME_CLIENT_PLAY_AGAIN, "");
+                }else{
+                    send(Message.Type.GAME_CLIENT_QUIT, "");
+                    System.out.println("Thank you for playing");
+                    closeConnection();
+                }
+                break;
         }
     }
 
     private void closeConnection() {
         this.closeConnection = true;
     }
-
-    private static class MessageComparator implements Comparator<Message> {
-        @Override
-        public int compare(Message m1, Message m2) {
-            if (m1.getType() == m2.getType()) {
-                return 0;
-            } else if (m1.getType() == Message.Type.GAME_SERVER_PLAYER_WON) {
-                return -1;  // m1 has higher priority
-            } else if (m2.getType() == Message.Type.GAME_SERVER_PLAYER_WON) {
-                return 1;   // m2 has higher priority
-            }else if (m1.getType() == Message.Type.GAME_SERVER_PLAYER_DISCONNECTED) {
-                return -1;  // m1 has higher priority
-            } else if (m2.getType() == Message.Type.GAME_SERVER_PLAYER_DISCONNECTED) {
-                return 1;   // m2 has higher priority
-            }else if(m1.getType() == Message.Type.GAME_START) {
-                return  1;
-            }else if(m2.getType() == Message.Type.GAME_START) {
-                return  -1;
-            }else {
-                return 0;   // Other message types have equal priority
-            }
-        }
-    }
 }
@@ -0,0 +1,74 @@
+package cpd.g15.wordScramble;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Bounded pool of threads checking and hashing passwords, which takes tens of milliseconds per login.
+ * The auth reactors submit the checks and resume the handshake when the returned future completes,
+ * so they keep serving the other connections meanwhile.
+ * When every thread is busy and the queue is full the check is refused right away instead of queueing forever.
+ *
+ * Options:
+ *  -DwordScramble.hashThreads=n (default one per core, 0 runs the checks on the calling thread)
+ *  -DwordScramble.hashQueue=n (checks waiting for a thread, default 1024)
+ */
+public class CredentialPool {
+
+    private static final int HASH_THREADS = Integer.getInteger("wordScramble.hashThreads", Runtime.getRuntime().availableProcessors());
+    private static final int HASH_QUEUE = Integer.getInteger("wordScramble.hashQueue", 1024);
+    private static final Metrics.Counter REJECTED = Metrics.counter("credentials.rejected", "Password checks refused because the pool was full");
+
+    private final ThreadPoolExecutor executor;
+
+    public CredentialPool() {
+        this(HASH_THREADS, HASH_QUEUE);
+    }
+
+    public CredentialPool(int threads, int queueSize) {
+        if (threads <= 0) {
+            this.executor = null;
+            return;
+        }
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), task -> {
+                    Thread thread = new Thread(task, "Credentials-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        Metrics.gauge("credentials.queued", "Password checks waiting for a thread", () -> executor.getQueue().size());
+    }
+
+    /**
+     * Runs the check on the pool.
+     * @return the future result, failed with RejectedExecutionException if the pool is full
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> check) {
+        if (executor == null) {
+            try {
+                return CompletableFuture.completedFuture(check.get());
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        try {
+            return CompletableFuture.supplyAsync(check, executor);
+        } catch (RejectedExecutionException e) {
+            REJECTED.increment();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    //Checks already submitted are finished, new ones are refused
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
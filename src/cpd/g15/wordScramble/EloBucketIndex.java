@@ -0,0 +1,113 @@
+package cpd.g15.wordScramble;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Queue entries grouped in ELO buckets of BUCKET_WIDTH points (a histogram of the queue).
+ * Inside a bucket entries are kept in the order they joined.
+ * Finding players close to a given ELO only looks at the buckets inside the tolerance,
+ * and never past the lowest and highest buckets that were ever used.
+ *
+ * Entries can be added, removed and searched from any thread without locking. Empty buckets are kept,
+ * removing them could lose an entry added to the bucket at the same time (there are only a few hundred).
+ */
+public class EloBucketIndex {
+
+    private static final int BUCKET_WIDTH = 50;
+
+    private final ConcurrentHashMap<Integer, ConcurrentSkipListSet<QueueEntry>> buckets;
+    private final AtomicInteger size;
+    //Range of the buckets, only widens since buckets are never removed
+    private final AtomicInteger minBucket;
+    private final AtomicInteger maxBucket;
+
+    public EloBucketIndex() {
+        this.buckets = new ConcurrentHashMap<>();
+        this.size = new AtomicInteger();
+        this.minBucket = new AtomicInteger(Integer.MAX_VALUE);
+        this.maxBucket = new AtomicInteger(Integer.MIN_VALUE);
+    }
+
+    public void add(QueueEntry entry) {
+        int bucket = bucketOf(entry.getElo());
+        //Widen the range before the entry can be found, a search never stops short of it
+        minBucket.accumulateAndGet(bucket, Math::min);
+        maxBucket.accumulateAndGet(bucket, Math::max);
+        if (buckets.computeIfAbsent(bucket, b -> new ConcurrentSkipListSet<>()).add(entry)) {
+            size.incrementAndGet();
+        }
+    }
+
+    public void remove(QueueEntry entry) {
+        //The ELO of the entry never changes, so it is always found in the bucket it was added to
+        ConcurrentSkipListSet<QueueEntry> entries = buckets.get(bucketOf(entry.getElo()));
+        if (entries != null && entries.remove(entry)) {
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * Finds the entries closest in ELO to the given one, at most tolerance points away.
+     * Buckets are scanned outwards from the bucket of the ELO and the scan stops once enough
+     * entries are found, so the result is the closest up to the width of a bucket.
+     * Buckets outside the used range are skipped, a lone player costs the same whatever its tolerance.
+     * @return the entries or null if there are not enough inside the tolerance
+     */
+    public ArrayList<QueueEntry> findClosest(int elo, int count, int tolerance, Predicate<QueueEntry> accept) {
+        ArrayList<QueueEntry> candidates = new ArrayList<>();
+        int center = bucketOf(elo);
+        int min = minBucket.get();
+        int max = maxBucket.get();
+        //Long arithmetic, elo + tolerance can overflow
+        long maxDistance = Math.min(Math.floorDiv((long) elo + tolerance, BUCKET_WIDTH) - center + 1,
+                Math.max((long) center - min, (long) max - center));
+
+        for (long distance = 0; distance <= maxDistance; distance++) {
+            if (center - distance >= min) {
+                addCandidates((int) (center - distance), elo, count, tolerance, accept, candidates);
+            }
+            if (distance != 0 && center + distance <= max) {
+                addCandidates((int) (center + distance), elo, count, tolerance, accept, candidates);
+            }
+            if (candidates.size() >= count) {
+                break;
+            }
+        }
+        if (candidates.size() < count) {
+            return null;
+        }
+        candidates.sort(Comparator.comparingInt(e -> Math.abs(e.getElo() - elo)));
+        return new ArrayList<>(candidates.subList(0, count));
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    //Up to count of the longest waiting entries of the bucket inside the tolerance
+    private void addCandidates(int bucket, int elo, int count, int tolerance, Predicate<QueueEntry> accept, ArrayList<QueueEntry> candidates) {
+        ConcurrentSkipListSet<QueueEntry> entries = buckets.get(bucket);
+        if (entries == null) {
+            return;
+        }
+        int added = 0;
+        for (QueueEntry entry : entries) {
+            if (added == count) {
+                return;
+            }
+            if (Math.abs(entry.getElo() - elo) <= tolerance && accept.test(entry)) {
+                candidates.add(entry);
+                added++;
+            }
+        }
+    }
+
+    private static int bucketOf(int elo) {
+        return Math.floorDiv(elo, BUCKET_WIDTH);
+    }
+}
@@ -0,0 +1,128 @@
+package cpd.g15.wordScramble;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Accumulates the bytes received on one connection and splits them into frames.
+ * Frames split across several reads are kept until they are complete and
+ * several frames received in the same read are all returned.
+ */
+public class FrameDecoder {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_FRAME_SIZE = 1 << 20;
+
+    //Buffer is always in write mode, bytes between readPosition and position are not decoded yet
+    private ByteBuffer buffer;
+    private int readPosition;
+    private long bytesRead;
+
+    public FrameDecoder() {
+        this.buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+        this.readPosition = 0;
+    }
+
+    /**
+     * Reads everything currently available on the channel.
+     * @return false if the channel reached end of stream
+     */
+    public boolean read(SocketChannel channel) throws IOException {
+        while (true) {
+            //Buffer full and it cannot hold more, decode what is there first and read the rest on the next event
+            if (!buffer.hasRemaining() && !makeRoom()) {
+                return true;
+            }
+            int bytesRead = channel.read(buffer);
+            if (bytesRead == -1) {
+                return false;
+            }
+            this.bytesRead += bytesRead;
+            //A blocking channel waits for more data on the next read, return what arrived
+            if (bytesRead == 0 || channel.isBlocking()) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Decodes the next complete frame.
+     * @return the message or null if no complete frame is buffered
+     */
+    public Message next() throws IOException {
+        int available = buffer.position() - readPosition;
+        if (available < 4) {
+            return null;
+        }
+
+        int messageSize = buffer.getInt(readPosition);
+        if (messageSize < 0 || messageSize > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame size: " + messageSize);
+        }
+        if (available < 4 + messageSize) {
+            // The message content has not been fully received yet, keep it for the next read
+            if (buffer.capacity() < 4 + messageSize) {
+                resize(4 + messageSize);
+            }
+            return null;
+        }
+
+        //View over the frame content without copying it
+        ByteBuffer content = buffer.duplicate();
+        content.limit(readPosition + 4 + messageSize);
+        content.position(readPosition + 4);
+        readPosition += 4 + messageSize;
+
+        //Everything was decoded, start from the beginning of the buffer again
+        if (readPosition == buffer.position()) {
+            buffer.clear();
+            readPosition = 0;
+        }
+
+        return Message.getCodec().decode(content);
+    }
+
+    //Bytes read from the channel since the decoder was created
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public boolean hasBufferedBytes() {
+        return buffer.position() > readPosition;
+    }
+
+    private boolean hasCompleteFrame() {
+        int available = buffer.position() - readPosition;
+        return available >= 4 && available >= 4 + buffer.getInt(readPosition);
+    }
+
+    //Discard decoded bytes or grow the buffer, returns false if no room could be made
+    private boolean makeRoom() {
+        if (readPosition > 0) {
+            resize(buffer.capacity());
+            return true;
+        }
+        //Only grow when the buffer does not hold a complete frame yet
+        if (!hasCompleteFrame() && buffer.capacity() < MAX_FRAME_SIZE + 4) {
+            resize(Math.min(buffer.capacity() * 2, MAX_FRAME_SIZE + 4));
+            return true;
+        }
+        return false;
+    }
+
+    //Move pending bytes to the start of a buffer with the given capacity
+    private void resize(int capacity) {
+        buffer.flip();
+        buffer.position(readPosition);
+        if (capacity == buffer.capacity()) {
+            buffer.compact();
+        } else {
+            ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+        readPosition = 0;
+    }
+}
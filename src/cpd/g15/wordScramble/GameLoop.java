@@ -0,0 +1,111 @@
+package cpd.g15.wordScramble;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event loop hosting many games on one selector.
+ * Each game is a state machine that reacts to the messages of its players,
+ * so the number of games is not limited by the number of threads.
+ */
+public class GameLoop extends Thread {
+
+    private final Selector selector;
+    //Work handed over by other threads, run by the loop before selecting again
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private final AtomicInteger games;
+    private volatile long eventsHandled;
+
+    public GameLoop(int id) throws IOException {
+        super("GameLoop-" + id);
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.games = new AtomicInteger();
+        setDaemon(true);
+    }
+
+    //Start hosting a game, can be called from any thread
+    public void host(WordScrambleRunnable game) {
+        games.incrementAndGet();
+        tasks.add(() -> {
+            try {
+                game.start(selector);
+            } catch (IOException e) {
+                System.out.println("Failed to start game: " + e.getMessage());
+            } catch (RuntimeException e) {
+                //Only this game is dropped, the loop keeps hosting the others
+                System.out.println("Failed to start game: " + e);
+                game.abort();
+            }
+            endIfFinished(game);
+        });
+        selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    eventsHandled++;
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    Session session = (Session) key.attachment();
+                    WordScrambleRunnable game = session.getGame();
+                    if (key.isReadable()) {
+                        try {
+                            game.read(key);
+                        } catch (IOException e) {
+                            //Only this connection is lost, the other games keep going
+                            System.out.println("Game connection error: " + e.getMessage());
+                            game.connectionLost(session);
+                        } catch (RuntimeException e) {
+                            //Bug or unexpected message in one game, end that game only
+                            System.out.println("Game error: " + e);
+                            game.abort();
+                        }
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.handleWritable();
+                    }
+                    endIfFinished(game);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void endIfFinished(WordScrambleRunnable game) {
+        if (game.isFinished() && game.end()) {
+            games.decrementAndGet();
+        }
+    }
+
+    //Number of games hosted, used to choose the least loaded loop
+    public int getLoad() {
+        return games.get();
+    }
+
+    public long getEventsHandled() {
+        return eventsHandled;
+    }
+}
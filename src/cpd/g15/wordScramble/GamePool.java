@@ -0,0 +1,49 @@
+package cpd.g15.wordScramble;
+
+import java.io.IOException;
+
+/**
+ * Pool of game event loops, one per core by default (-DwordScramble.gameLoops).
+ * A new game goes to the loop hosting the fewest games.
+ */
+public class GamePool {
+
+    private static final int GAME_LOOPS = Integer.getInteger("wordScramble.gameLoops", Runtime.getRuntime().availableProcessors());
+
+    private final GameLoop[] loops;
+
+    public GamePool() throws IOException {
+        this(GAME_LOOPS);
+    }
+
+    public GamePool(int numberOfLoops) throws IOException {
+        this.loops = new GameLoop[Math.max(1, numberOfLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new GameLoop(i);
+            loops[i].start();
+            Metrics.gauge("games.loop.load", "Games hosted by each game loop", "loop", loops[i].getName(), loops[i]::getLoad);
+        }
+    }
+
+    public void host(WordScrambleRunnable game) {
+        GameLoop leastLoaded = loops[0];
+        for (GameLoop loop : loops) {
+            if (loop.getLoad() < leastLoaded.getLoad()) {
+                leastLoaded = loop;
+            }
+        }
+        leastLoaded.host(game);
+    }
+
+    public int getGameCount() {
+        int count = 0;
+        for (GameLoop loop : loops) {
+            count += loop.getLoad();
+        }
+        return count;
+    }
+
+    public GameLoop[] getLoops() {
+        return loops;
+    }
+}
@@ -0,0 +1,41 @@
+package cpd.g15.wordScramble;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Threads of the thread per game mode (-DwordScramble.gameExecution=threads).
+ * Virtual threads are used when the JVM has them (Java 21 or newer),
+ * otherwise platform threads with a small stack.
+ */
+public class GameThreads {
+
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+    private static final AtomicLong threadCount = new AtomicLong();
+    private static final ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+
+    public static Thread newThread(Runnable task) {
+        if (virtualThreadFactory != null) {
+            return virtualThreadFactory.newThread(task);
+        }
+        Thread thread = new Thread(null, task, "Game-" + threadCount.incrementAndGet(), PLATFORM_STACK_SIZE);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    public static boolean isVirtual() {
+        return virtualThreadFactory != null;
+    }
+
+    //Thread.ofVirtual().name("Game-", 0).factory(), looked up at runtime so the code still compiles for Java 17
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "Game-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
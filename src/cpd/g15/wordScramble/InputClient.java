@@ -1,55 +1,59 @@
 package cpd.g15.wordScramble;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Scanner;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.Selector;
 import java.util.Queue;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+/**
+ * Reads the console on its own thread. The read blocks until a line is typed, so the thread uses no CPU
+ * while the user is idle. Every line is queued and the selector of the client is woken up to take it.
+ */
 public class InputClient extends Thread{
-    private final Scanner scanner;
+    private final BufferedReader reader;
+    private final Selector selector;
     private final Queue<String> queue;
-    private  volatile Boolean stop;
-    private final ReentrantLock lock;
-    public InputClient(Scanner scanner) {
-        this.scanner = scanner;
-        this.lock = new ReentrantLock();
-        this.queue = new LinkedList<>();
-        this.stop = false;
+    private volatile boolean closed;
+
+    public InputClient(InputStream input, Selector selector) {
+        this.reader = new BufferedReader(new InputStreamReader(input));
+        this.selector = selector;
+        this.queue = new ConcurrentLinkedQueue<>();
+        this.closed = false;
+        //A blocked console read can not be interrupted, the thread must not keep the client running
+        setDaemon(true);
     }
 
     public void run() {
-            while (!stop) {
-                try {
-                    if(System.in.available() > 0){
-                        String input  = scanner.nextLine();
-                        lock.lock();
-                        queue.add(input);
-                        lock.unlock();
-                    }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
+        try {
+            String input;
+            while ((input = reader.readLine()) != null) {
+                queue.add(input);
+                selector.wakeup();
             }
-            queue.clear();
+        } catch (IOException e) {
+            System.out.println("Error reading input");
+        }
+        //End of input, the client is woken up to see it
+        closed = true;
+        selector.wakeup();
     }
 
+    //Next line typed or null
     public String getInput() {
-        lock.lock();
-        String input = queue.poll();
-        lock.unlock();
-        return input;
+        return queue.poll();
     }
 
-
-    public void stopThread(){
-        this.stop = true;
-        this.scanner.close();
+    public boolean hasInput(){
+        return !queue.isEmpty();
     }
 
-
-    public Boolean hasInput(){
-        return !queue.isEmpty();
+    //Input ended and every line was taken
+    public boolean isClosed(){
+        return closed && queue.isEmpty();
     }
 
 }
@@ -1,15 +0,0 @@
-package cpd.g15.wordScramble;
-
-import java.util.HashMap;
-
-public class KeyAttachment {
-    private final HashMap<String, String> map;
-
-    public KeyAttachment() {
-        map = new HashMap<>();
-    }
-
-    public HashMap<String, String> getMap() {
-        return map;
-    }
-}
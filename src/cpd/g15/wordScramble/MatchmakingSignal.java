@@ -0,0 +1,43 @@
+package cpd.g15.wordScramble;
+
+/**
+ * Wakes the matchmaking loop when something that can form a game changed
+ * (player joined or left the queue, game finished).
+ * Signals are not lost: a signal sent while matchmaking is running is seen by the next await.
+ */
+public class MatchmakingSignal {
+
+    private boolean signalled;
+    private long signals;
+
+    public synchronized void signal() {
+        signalled = true;
+        signals++;
+        notifyAll();
+    }
+
+    /**
+     * Waits until signalled or until the timeout passes.
+     * @return true if it was signalled
+     */
+    public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        if (deadline < 0) {
+            //No timeout
+            deadline = Long.MAX_VALUE;
+        }
+        while (!signalled) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        signalled = false;
+        return true;
+    }
+
+    public synchronized long getSignals() {
+        return signals;
+    }
+}
@@ -1,45 +1,68 @@
 package cpd.g15.wordScramble;
 
-import java.io.*;
+import java.io.IOException;
+import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 
 public class Message implements Serializable {
+    //Stage of the protocol a message belongs to, clients route messages by it
+    enum Category {
+        AUTH,
+        QUEUE,
+        GAME
+    }
+
     enum Type {
 
         //Authentication
-        AUTH_START,
-        AUTH_START_TOKEN,
-        AUTH_START_CREDENTIALS,
-        AUTH_REQUEST_TOKEN,
-        AUTH_RESPONSE_TOKEN,
-        AUTH_REQUEST_CHOICE,
-        AUTH_RESPONSE_CHOICE,
-        AUTH_REQUEST_CREDENTIALS,
-        AUTH_RESPONSE_CREDENTIALS,
-        AUTH_SUCCESS,
+        AUTH_START(Category.AUTH),
+        AUTH_START_TOKEN(Category.AUTH),
+        AUTH_START_CREDENTIALS(Category.AUTH),
+        AUTH_REQUEST_TOKEN(Category.AUTH),
+        AUTH_RESPONSE_TOKEN(Category.AUTH),
+        AUTH_REQUEST_CHOICE(Category.AUTH),
+        AUTH_RESPONSE_CHOICE(Category.AUTH),
+        AUTH_REQUEST_CREDENTIALS(Category.AUTH),
+        AUTH_RESPONSE_CREDENTIALS(Category.AUTH),
+        AUTH_SUCCESS(Category.AUTH),
 
         //Game
-        GAME_START,
-        GAME_CLIENT_WORD,
-        GAME_SERVER_CORRECT_WORD,
-        GAME_SERVER_GET_NEW_WORD,
-        GAME_SERVER_PLAYER_WON,
-        GAME_SERVER_PLAYER_DISCONNECTED,
-        GAME_CLIENT_PLAY_AGAIN,
-        GAME_CLIENT_QUIT_IN_GAME,
-        GAME_CLIENT_QUIT,
-        GAME_START_READY,
+        GAME_START(Category.GAME),
+        GAME_CLIENT_WORD(Category.GAME),
+        GAME_SERVER_CORRECT_WORD(Category.GAME),
+        GAME_SERVER_GET_NEW_WORD(Category.GAME),
+        GAME_SERVER_PLAYER_WON(Category.GAME),
+        GAME_SERVER_PLAYER_DISCONNECTED(Category.GAME),
+        GAME_CLIENT_PLAY_AGAIN(Category.GAME),
+        GAME_CLIENT_QUIT_IN_GAME(Category.GAME),
+        GAME_CLIENT_QUIT(Category.GAME),
+        GAME_START_READY(Category.GAME),
+        GAME_SERVER_NEXT_ROUND(Category.GAME),
 
         // Queue
-        QUEUE_START,
-        QUEUE_RESPONSE,
-        QUEUE_WAITING,
-        QUEUE_TOKEN_REFRESH,
-        QUEUE_TOKEN_REFRESH_OK,
-        QUEUE_CLIENT_TIMEOUT,
+        QUEUE_START(Category.QUEUE),
+        QUEUE_RESPONSE(Category.QUEUE),
+        QUEUE_WAITING(Category.QUEUE),
+        QUEUE_TOKEN_REFRESH(Category.QUEUE),
+        QUEUE_TOKEN_REFRESH_OK(Category.QUEUE),
+        QUEUE_CLIENT_TIMEOUT(Category.QUEUE);
+
+        private final Category category;
+
+        Type(Category category) {
+            this.category = category;
+        }
+
+        public Category getCategory() {
+            return category;
+        }
     }
 
+    private static final Metrics.Counter SHARED_FRAMES = Metrics.counter("messages.shared.frames", "Frames encoded once for a broadcast");
+
     private final Type type;
     private final Object object;
 
@@ -48,70 +71,48 @@ public class Message implements Serializable {
         this.object = object;
     }
 
-    public boolean writeObject(SocketChannel channel) throws IOException {
-        //Create byte stream
-        ByteArrayOutputStream byteOUTStream = new ByteArrayOutputStream();
-        //Create object stream
-        ObjectOutputStream objectOUTStream = new ObjectOutputStream(byteOUTStream);
-        //Write message to stream
-        objectOUTStream.writeObject(this);
-        //Convert message to byte array
-        byte[] messageBytes = byteOUTStream.toByteArray();
-        //Get message size
-        int messageSize = messageBytes.length;
-        //Create buffer to hold message size and message content
-        ByteBuffer buffer = ByteBuffer.allocate(4 + messageSize);
-        buffer.putInt(messageSize);
-        //Write byte stream to buffer
-        buffer.put(messageBytes);
-        //Flip buffer
-        buffer.flip();
-        //Write buffer to channel
-        return channel.write(buffer) > 0;
+    //Codec used to convert messages to bytes (client and server must use the same one)
+    //Start with -DwordScramble.codec=serialization to use the old Java serialization format
+    private static MessageCodec codec = "serialization".equals(System.getProperty("wordScramble.codec"))
+            ? new SerializationCodec() : new BinaryCodec();
 
+    public static MessageCodec getCodec() {
+        return codec;
     }
 
-    public static Message readObject(SocketChannel channel) throws IOException, ClassNotFoundException {
-        //Create  byte buffer to hold object
-        ByteBuffer sizeBuffer = ByteBuffer.allocate(4);
-        //Read bytes from channel into buffer
-        int bytesRead = channel.read(sizeBuffer);
-        if(bytesRead == -1){
-            return null;
-        }
-
-        if (sizeBuffer.remaining() > 0) {
-            // The object size has not been fully read yet, so return null for now
-            return null;
-        }
-
+    public static void setCodec(MessageCodec newCodec) {
+        codec = newCodec;
+    }
 
-        sizeBuffer.flip();
-        int messageSize = sizeBuffer.getInt();
+    //Queue message on a server connection, it is sent without blocking the selector thread
+    public boolean writeObject(Session connection) throws IOException {
+        return connection.send(this);
+    }
 
-        // Create buffer to hold message content
-        ByteBuffer contentBuffer = ByteBuffer.allocate(messageSize);
-        // Read message content from channel into content buffer
-        bytesRead = channel.read(contentBuffer);
+    //Encode message once into a read-only frame that can be sent to several connections
+    public ByteBuffer encodeShared() throws IOException {
+        SHARED_FRAMES.increment();
+        return codec.encode(this).asReadOnlyBuffer();
+    }
 
-        if (bytesRead == -1) {
-            // Channel has been closed
-            return null;
+    //Returns once the whole frame is written, a closed channel throws
+    public void writeObject(SocketChannel channel) throws IOException {
+        //Encode message into buffer with message size and message content
+        ByteBuffer buffer = codec.encode(this);
+        //A blocking channel writes everything at once
+        channel.write(buffer);
+        if (!buffer.hasRemaining()) {
+            return;
         }
-
-        if (contentBuffer.remaining() > 0) {
-            // The message content has not been fully read yet, so return null for now
-            return null;
+        //Non-blocking channel with a full socket buffer: sleep until it can be written instead of spinning
+        try (Selector selector = Selector.open()) {
+            channel.register(selector, SelectionKey.OP_WRITE);
+            while (buffer.hasRemaining()) {
+                selector.select();
+                selector.selectedKeys().clear();
+                channel.write(buffer);
+            }
         }
-
-        contentBuffer.flip();
-        byte[] messageBytes = new byte[messageSize];
-        contentBuffer.get(messageBytes);
-
-        // Create object input stream with byte array input stream
-        ObjectInputStream objectInStream = new ObjectInputStream(new ByteArrayInputStream(messageBytes));
-        // Read object from stream
-        return (Message) objectInStream.readObject();
     }
 
 
@@ -0,0 +1,22 @@
+package cpd.g15.wordScramble;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts messages to and from the bytes sent on the wire.
+ * A frame is always a 4 byte size followed by the encoded message.
+ */
+public interface MessageCodec {
+
+    /**
+     * Encodes the message into a complete frame (size + content).
+     * The returned buffer is flipped and ready to be written.
+     */
+    ByteBuffer encode(Message message) throws IOException;
+
+    /**
+     * Decodes the content of a single frame (without the size prefix).
+     */
+    Message decode(ByteBuffer content) throws IOException;
+}
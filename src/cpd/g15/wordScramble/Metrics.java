@@ -0,0 +1,208 @@
+package cpd.g15.wordScramble;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the server metrics: counters, gauges and latency histograms.
+ * Recording is lock free and costs about the same as incrementing a field, so the hot paths
+ * (reads, writes, logins, matchmaking) record directly. The values are read by the JMX bean,
+ * the HTTP scrape endpoint and the console summary (MetricsExporter, ServerStatus).
+ *
+ * A metric has a name and optionally one label (for example the message type of the message counters).
+ */
+public class Metrics {
+
+    private static final ConcurrentSkipListMap<String, Metric> registry = new ConcurrentSkipListMap<>();
+
+    public abstract static class Metric {
+        private final String name;
+        private final String help;
+        private final String labelName;
+        private final String labelValue;
+
+        private Metric(String name, String help, String labelName, String labelValue) {
+            this.name = name;
+            this.help = help;
+            this.labelName = labelName;
+            this.labelValue = labelValue;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getHelp() {
+            return help;
+        }
+
+        public String getLabelName() {
+            return labelName;
+        }
+
+        public String getLabelValue() {
+            return labelValue;
+        }
+
+        //Name and label, unique in the registry
+        public String getKey() {
+            return labelValue == null ? name : name + "." + labelValue;
+        }
+    }
+
+    //Value that only grows
+    public static class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name, String help, String labelName, String labelValue) {
+            super(name, help, labelName, labelValue);
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    //Value read when the metrics are collected
+    public static class Gauge extends Metric {
+        private final LongSupplier supplier;
+
+        private Gauge(String name, String help, String labelName, String labelValue, LongSupplier supplier) {
+            super(name, help, labelName, labelValue);
+            this.supplier = supplier;
+        }
+
+        public long get() {
+            return supplier.getAsLong();
+        }
+    }
+
+    /**
+     * Distribution of latencies in microseconds (or of sizes in bytes, for histograms named so). Values are counted in log-linear buckets
+     * (SUB_BUCKETS per power of two), so percentiles are within 1/SUB_BUCKETS of the real value.
+     */
+    public static class Histogram extends Metric {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        private Histogram(String name, String help) {
+            super(name, help, null, null);
+        }
+
+        //Record the time since start, in System.nanoTime
+        public void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        public void record(long micros) {
+            long value = Math.max(0, micros);
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        //Upper bound of the bucket holding the given percentile (0-100), 0 if empty
+        public long getPercentile(double percentile) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return upperBoundOf(i);
+                }
+            }
+            return upperBoundOf(BUCKETS - 1);
+        }
+
+        private static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            int sub = bucket % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+    }
+
+    public static Counter counter(String name, String help) {
+        return register(new Counter(name, help, null, null));
+    }
+
+    //One counter per value of the enum, labelled with the value name
+    public static <E extends Enum<E>> Counter[] counters(String name, String help, String labelName, E[] values) {
+        Counter[] counters = new Counter[values.length];
+        for (E value : values) {
+            counters[value.ordinal()] = register(new Counter(name, help, labelName, value.name()));
+        }
+        return counters;
+    }
+
+    public static Gauge gauge(String name, String help, LongSupplier supplier) {
+        return register(new Gauge(name, help, null, null, supplier));
+    }
+
+    public static Gauge gauge(String name, String help, String labelName, String labelValue, LongSupplier supplier) {
+        return register(new Gauge(name, help, labelName, labelValue, supplier));
+    }
+
+    public static Histogram histogram(String name, String help) {
+        return register(new Histogram(name, help));
+    }
+
+    public static Metric get(String key) {
+        return registry.get(key);
+    }
+
+    //Every metric, sorted by key
+    public static Collection<Metric> all() {
+        return registry.values();
+    }
+
+    //A metric registered again (a component created twice) replaces the previous one
+    private static <M extends Metric> M register(M metric) {
+        registry.put(metric.getKey(), metric);
+        return metric;
+    }
+}
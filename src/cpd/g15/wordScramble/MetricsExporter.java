@@ -0,0 +1,176 @@
+package cpd.g15.wordScramble;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exposes the Metrics registry:
+ *  - as the JMX bean cpd.g15.wordScramble:type=Metrics (one attribute per counter and gauge,
+ *    count/p50/p99/max attributes per histogram, latencies in microseconds and sizes in bytes)
+ *  - on a local HTTP endpoint in the Prometheus text format, http://127.0.0.1:(port)/metrics
+ *
+ * Options:
+ *  -DwordScramble.metricsPort=port (HTTP endpoint port, 0 to disable it)
+ */
+public class MetricsExporter {
+
+    public static final int METRICS_PORT = Integer.getInteger("wordScramble.metricsPort", 9150);
+    private static final String PREFIX = "wordscramble_";
+    private static final String[] HISTOGRAM_FIELDS = {"count", "p50", "p99", "max"};
+
+    public static void start() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), new ObjectName("cpd.g15.wordScramble:type=Metrics"));
+        } catch (Exception e) {
+            System.out.println("Metrics JMX bean not registered: " + e.getMessage());
+        }
+        if (METRICS_PORT <= 0) {
+            return;
+        }
+        try {
+            //Only reachable from the machine running the server
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), METRICS_PORT), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            System.out.println("Metrics on http://127.0.0.1:" + METRICS_PORT + "/metrics");
+        } catch (IOException e) {
+            System.out.println("Metrics endpoint not started on port " + METRICS_PORT + ": " + e.getMessage());
+        }
+    }
+
+    //Every metric in the Prometheus text format
+    public static String scrape() {
+        StringBuilder out = new StringBuilder();
+        String lastName = null;
+        for (Metrics.Metric metric : Metrics.all()) {
+            String name = PREFIX + metric.getName().replace('.', '_');
+            String type = metric instanceof Metrics.Counter ? "counter" : metric instanceof Metrics.Gauge ? "gauge" : "summary";
+            if (metric instanceof Metrics.Counter) {
+                name += "_total";
+            }
+            //Labelled metrics share the header
+            if (!name.equals(lastName)) {
+                out.append("# HELP ").append(name).append(' ').append(metric.getHelp()).append('\n');
+                out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+                lastName = name;
+            }
+            String labels = metric.getLabelName() == null ? "" : "{" + metric.getLabelName() + "=\"" + metric.getLabelValue() + "\"}";
+            if (metric instanceof Metrics.Counter) {
+                out.append(name).append(labels).append(' ').append(((Metrics.Counter) metric).get()).append('\n');
+            } else if (metric instanceof Metrics.Gauge) {
+                out.append(name).append(labels).append(' ').append(((Metrics.Gauge) metric).get()).append('\n');
+            } else {
+                Metrics.Histogram histogram = (Metrics.Histogram) metric;
+                out.append(name).append("{quantile=\"0.5\"} ").append(histogram.getPercentile(50)).append('\n');
+                out.append(name).append("{quantile=\"0.99\"} ").append(histogram.getPercentile(99)).append('\n');
+                out.append(name).append("_sum ").append(histogram.getSum()).append('\n');
+                out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    //Value of a metric attribute: key of a counter or gauge, key.field of a histogram
+    private static long valueOf(String attribute) throws AttributeNotFoundException {
+        Metrics.Metric metric = Metrics.get(attribute);
+        if (metric instanceof Metrics.Counter) {
+            return ((Metrics.Counter) metric).get();
+        }
+        if (metric instanceof Metrics.Gauge) {
+            return ((Metrics.Gauge) metric).get();
+        }
+        int dot = attribute.lastIndexOf('.');
+        if (dot > 0 && Metrics.get(attribute.substring(0, dot)) instanceof Metrics.Histogram) {
+            Metrics.Histogram histogram = (Metrics.Histogram) Metrics.get(attribute.substring(0, dot));
+            switch (attribute.substring(dot + 1)) {
+                case "count":
+                    return histogram.getCount();
+                case "p50":
+                    return histogram.getPercentile(50);
+                case "p99":
+                    return histogram.getPercentile(99);
+                case "max":
+                    return histogram.getPercentile(100);
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    //Read only bean, the attributes are the metrics registered when it is inspected
+    private static class MetricsBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            return valueOf(attribute);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, valueOf(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    //Unknown attributes are left out
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        //No operations, only attributes
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Metrics.Metric metric : Metrics.all()) {
+                if (metric instanceof Metrics.Histogram) {
+                    for (String field : HISTOGRAM_FIELDS) {
+                        attributes.add(new MBeanAttributeInfo(metric.getKey() + "." + field, "long",
+                                metric.getHelp() + " (" + field + ", us)", true, false, false));
+                    }
+                } else {
+                    attributes.add(new MBeanAttributeInfo(metric.getKey(), "long", metric.getHelp(), true, false, false));
+                }
+            }
+            return new MBeanInfo(MetricsExporter.class.getName(), "Word Scramble server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package cpd.g15.wordScramble;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Frames waiting to be sent on one connection.
+ * Frames are written right away when possible, what the socket does not accept is kept
+ * and flushed when the selector reports OP_WRITE, so a slow client never blocks a selector thread.
+ * Above the low watermark the client stops being read (throttled) until the backlog drains,
+ * above the high watermark the client is disconnected.
+ */
+public class OutboundQueue {
+
+    //Limits of bytes waiting to be sent, can be changed with -DwordScramble.writeLowWatermark / writeHighWatermark
+    private static final int LOW_WATERMARK = Integer.getInteger("wordScramble.writeLowWatermark", 64 * 1024);
+    private static final int HIGH_WATERMARK = Integer.getInteger("wordScramble.writeHighWatermark", 256 * 1024);
+    private static final int MAX_GATHER = 16;
+
+    private static final Metrics.Counter BYTES_OUT = Metrics.counter("bytes.out", "Bytes sent to clients");
+    private static final Metrics.Counter SLOW_DISCONNECTS = Metrics.counter("connections.slow", "Clients disconnected for not reading fast enough");
+
+    private final SocketChannel channel;
+    private final ArrayDeque<ByteBuffer> frames;
+    private final ByteBuffer[] gather;
+    private SelectionKey key;
+    private long pendingBytes;
+    private boolean throttled;
+    private boolean failed;
+
+    public OutboundQueue(SocketChannel channel) {
+        this.channel = channel;
+        this.frames = new ArrayDeque<>();
+        this.gather = new ByteBuffer[MAX_GATHER];
+    }
+
+    /**
+     * Queues a frame and tries to write it.
+     * @return false if the frame was dropped because the connection is closed or too slow
+     */
+    public synchronized boolean enqueue(ByteBuffer frame) {
+        if (failed || !channel.isOpen()) {
+            return false;
+        }
+        frames.add(frame);
+        pendingBytes += frame.remaining();
+        if (!flush() && failed) {
+            return false;
+        }
+
+        if (pendingBytes > HIGH_WATERMARK) {
+            System.out.println("Client too slow, disconnecting: " + channel);
+            SLOW_DISCONNECTS.increment();
+            fail();
+            return false;
+        }
+        if (pendingBytes > LOW_WATERMARK) {
+            throttled = true;
+        }
+        updateInterest();
+        return true;
+    }
+
+    /**
+     * Writes as many queued frames as the socket accepts.
+     * @return true if everything was written
+     */
+    public synchronized boolean flush() {
+        try {
+            write();
+        } catch (IOException e) {
+            fail();
+            return false;
+        }
+
+        if (throttled && pendingBytes <= LOW_WATERMARK) {
+            throttled = false;
+        }
+        updateInterest();
+        return frames.isEmpty();
+    }
+
+    private void write() throws IOException {
+        while (!frames.isEmpty()) {
+            //Gather the first frames into a single write
+            int count = 0;
+            for (ByteBuffer frame : frames) {
+                gather[count++] = frame;
+                if (count == MAX_GATHER) {
+                    break;
+                }
+            }
+            long written = channel.write(gather, 0, count);
+            pendingBytes -= written;
+            BYTES_OUT.add(written);
+
+            //Remove frames that were fully written
+            while (!frames.isEmpty() && !frames.peek().hasRemaining()) {
+                frames.poll();
+            }
+            if (written == 0) {
+                break;
+            }
+        }
+        for (int i = 0; i < MAX_GATHER; i++) {
+            gather[i] = null;
+        }
+    }
+
+    /**
+     * Sets the key of the selector now handling this connection and applies the pending interest.
+     */
+    public synchronized void setKey(SelectionKey key) {
+        this.key = key;
+        updateInterest();
+    }
+
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public synchronized boolean isThrottled() {
+        return throttled;
+    }
+
+    //Read unless throttled, write while there are frames pending
+    private void updateInterest() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        int ops = (throttled && !failed) ? 0 : SelectionKey.OP_READ;
+        if (!frames.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        try {
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+                //Interest can be changed from another thread, make the selector notice it
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // Connection was handed to another selector or closed
+        }
+    }
+
+    //Drop the backlog and shut the input so the thread owning the connection sees end of stream and disconnects it
+    private void fail() {
+        failed = true;
+        frames.clear();
+        pendingBytes = 0;
+        updateInterest();
+        try {
+            channel.shutdownInput();
+        } catch (IOException e) {
+            // Channel already closed
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package cpd.g15.wordScramble;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Salted password hashes (PBKDF2 with HMAC-SHA256), stored in the password field of the player store.
+ * Hashing is slow on purpose (tens of milliseconds), it runs on the CredentialPool, never on a selector thread.
+ *
+ * Hash: pbkdf2$iterations$base64(salt)$base64(hash), at most 80 characters.
+ * Passwords stored in plain text by older versions are still accepted and hashed on the next login,
+ * as are hashes made with a different cost.
+ *
+ * Options:
+ *  -DwordScramble.hashIterations=n (cost of new hashes, default 100000)
+ */
+public class PasswordHasher {
+
+    public static final int ITERATIONS = Math.max(1, Integer.getInteger("wordScramble.hashIterations", 100000));
+    private static final String PREFIX = "pbkdf2$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+    private static final SecureRandom random = new SecureRandom();
+    //Key factories are not thread safe, one per thread
+    private static final ThreadLocal<SecretKeyFactory> factories = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        }
+    });
+
+    public static String hash(String password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return PREFIX + ITERATIONS + "$" + ENCODER.encodeToString(salt) + "$" + ENCODER.encodeToString(derive(password, salt, ITERATIONS));
+    }
+
+    //Check a password against a stored hash (or a plain text password of an older version)
+    public static boolean verify(String stored, String password) {
+        if (password.isEmpty()) {
+            return false;
+        }
+        if (!stored.startsWith(PREFIX)) {
+            return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        try {
+            int iterations = Integer.parseInt(parts[1]);
+            byte[] expected = DECODER.decode(parts[3]);
+            //Time does not depend on where the hashes differ
+            return MessageDigest.isEqual(expected, derive(password, DECODER.decode(parts[2]), iterations));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    //Plain text passwords and hashes of another cost are replaced after a successful login
+    public static boolean needsRehash(String stored) {
+        return !stored.startsWith(PREFIX + ITERATIONS + "$");
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_LENGTH * 8);
+        try {
+            return factories.get().generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Password hash failed", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
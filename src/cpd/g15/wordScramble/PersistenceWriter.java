@@ -0,0 +1,210 @@
+package cpd.g15.wordScramble;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies player store changes on a dedicated thread so Auth and the games never wait for the disk.
+ * Changes are queued (bounded queue), collected into groups and each group is committed at once.
+ * Each change gets a future completed once its group is committed: a registration is acknowledged when it completes,
+ * rating updates ignore it.
+ *
+ * Options:
+ *  -DwordScramble.durability=group|none (group: force the store to disk after every group, the futures complete after it,
+ *   none: leave it to the OS to write the mapped pages, a completed change can still be lost if the machine stops)
+ *  -DwordScramble.flushInterval=ms (how long to wait for more changes before committing a group)
+ */
+public class PersistenceWriter extends Thread {
+
+    enum Durability {
+        NONE,
+        GROUP
+    }
+
+    public interface Operation {
+        void apply(PlayerStore store) throws IOException;
+    }
+
+    //Queued change and the future completed when its group is committed
+    private static final class Pending {
+        final Operation operation;
+        final CompletableFuture<Void> committed;
+
+        Pending(Operation operation) {
+            this.operation = operation;
+            this.committed = new CompletableFuture<>();
+        }
+    }
+
+    private static final int QUEUE_CAPACITY = Integer.getInteger("wordScramble.persistQueueSize", 65536);
+    private static final long FLUSH_INTERVAL = Long.getLong("wordScramble.flushInterval", 10);
+    private static final int MAX_BATCH_SIZE = 4096;
+
+    private final PlayerStore store;
+    private final BlockingQueue<Pending> operations;
+    private final Durability durability;
+    private final long flushIntervalMillis;
+    private volatile boolean running;
+
+    //Metrics, only written by the writer thread
+    private volatile long batches;
+    private volatile long records;
+    private volatile int lastBatchSize;
+    private volatile int maxBatchSize;
+    private volatile long totalCommitNanos;
+    private volatile long lastCommitNanos;
+    private volatile long maxCommitNanos;
+
+    public PersistenceWriter(PlayerStore store) {
+        this(store, Durability.valueOf(System.getProperty("wordScramble.durability", "group").toUpperCase()), FLUSH_INTERVAL);
+    }
+
+    public PersistenceWriter(PlayerStore store, Durability durability, long flushIntervalMillis) {
+        super("PersistenceWriter");
+        this.store = store;
+        this.operations = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.durability = durability;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.running = true;
+        setDaemon(true);
+    }
+
+    /**
+     * Queues a change, waits only if the queue is full.
+     * @return completed once the group of the change is committed (forced to disk in group durability),
+     * exceptionally if the change failed or could not be queued
+     */
+    public CompletableFuture<Void> submit(Operation operation) {
+        Pending pending = new Pending(operation);
+        try {
+            operations.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.committed.completeExceptionally(e);
+        }
+        return pending.committed;
+    }
+
+    public void run() {
+        List<Pending> batch = new ArrayList<>();
+        while (running || !operations.isEmpty()) {
+            try {
+                Pending first = operations.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                collectGroup(batch);
+            } catch (InterruptedException e) {
+                //Shutdown requested, commit what is queued
+                operations.drainTo(batch);
+            }
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    //Wait up to the flush interval for more changes to commit with the first one
+    private void collectGroup(List<Pending> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        while (batch.size() < MAX_BATCH_SIZE) {
+            operations.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= MAX_BATCH_SIZE || remaining <= 0) {
+                return;
+            }
+            Pending next = operations.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void commit(List<Pending> batch) {
+        long start = System.nanoTime();
+        for (Pending pending : batch) {
+            try {
+                pending.operation.apply(store);
+            } catch (IOException e) {
+                System.out.println("Failed to persist player change: " + e.getMessage());
+                pending.committed.completeExceptionally(e);
+            }
+        }
+        if (durability == Durability.GROUP) {
+            store.force();
+        }
+        long commitNanos = System.nanoTime() - start;
+        //Acknowledged only now, every change of the group is on disk (group durability)
+        for (Pending pending : batch) {
+            pending.committed.complete(null);
+        }
+
+        batches++;
+        records += batch.size();
+        lastBatchSize = batch.size();
+        maxBatchSize = Math.max(maxBatchSize, batch.size());
+        lastCommitNanos = commitNanos;
+        totalCommitNanos += commitNanos;
+        maxCommitNanos = Math.max(maxCommitNanos, commitNanos);
+    }
+
+    /**
+     * Stops the writer after committing every queued change.
+     */
+    public void shutdown() {
+        running = false;
+        interrupt();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        store.force();
+    }
+
+    public int getQueueSize() {
+        return operations.size();
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public double getAverageBatchSize() {
+        long batches = this.batches;
+        return batches == 0 ? 0 : (double) records / batches;
+    }
+
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public double getAverageCommitMillis() {
+        long batches = this.batches;
+        return batches == 0 ? 0 : totalCommitNanos / 1e6 / batches;
+    }
+
+    public double getLastCommitMillis() {
+        return lastCommitNanos / 1e6;
+    }
+
+    public double getMaxCommitMillis() {
+        return maxCommitNanos / 1e6;
+    }
+}
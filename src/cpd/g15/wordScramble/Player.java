@@ -2,23 +2,27 @@ package cpd.g15.wordScramble;
 
 import java.io.IOException;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
 
 public class Player {
     private final String username;
-    private final String password;
-    protected boolean isLoggedIn;
+    //Salted hash, or the plain text password of an older database until the next login
+    private volatile String password;
+    private volatile boolean isLoggedIn;
     private Ranking rank;
     private int elo;
-    private String waitingToken;
-    private long joinTime;
+    private int wins;
+    private int losses;
+    private volatile int slot;
+    private volatile String waitingToken;
     private SocketChannel channel;
+    private Session session;
 
     enum Ranking {
         BRONZE,
@@ -33,6 +37,7 @@ public class Player {
         this.isLoggedIn = false;
         this.rank = determineRanking();
         this.waitingToken = "";
+        this.slot = -1;
     }
 
     public String getUsername() {
@@ -50,10 +55,41 @@ public class Player {
         this.elo = elo;
     }
 
+    public int getWins() {
+        return wins;
+    }
+
+    public int getLosses() {
+        return losses;
+    }
+
+    public void addWin() {
+        this.wins++;
+    }
+
+    public void addLoss() {
+        this.losses++;
+    }
+
+    //Slot of the player record in the player store
+    public int getSlot() {
+        return slot;
+    }
+
     public void setChannel(SocketChannel channel) {
+        //Keep channel index consistent
+        PlayerDatabase.reindex(PlayerDatabase.playersByChannel, this.channel, channel, this);
         this.channel = channel;
     }
 
+    public Session getSession() {
+        return session;
+    }
+
+    public void setSession(Session session) {
+        this.session = session;
+    }
+
     public Ranking getRank() {
         return rank;
     }
@@ -65,6 +101,7 @@ public class Player {
         return this.isLoggedIn;
     }
 
+    //Not locked: once the player is in the database its login state is only changed by the database, under the stripe lock
     public void setLoggedIn(boolean loggedIn){
         this.isLoggedIn = loggedIn;
     }
@@ -92,155 +129,367 @@ public class Player {
         }
     }
 
-    public long getJoinTime(){
-        return this.joinTime;
-    }
-
-    public void setJoinTime(long time){
-        this.joinTime = time;
-    }
-
     // ================== Player Database ==================
 
     public static class PlayerDatabase {
-        private final Path path = Paths.get("../data/PlayerDatabase.txt");
+        private final Path textPath;
+        private final Path storePath;
 
         private static final int STARTING_ELO = 400;
-        private static final long TOKEN_EXPIRATION_TIME = 50000;
+        private static final int LOCK_STRIPES = 64;
+
+        //Signed session tokens, checked without looking up players
+        public final SessionTokens tokens;
+        //Password checks and hashes run on this pool, off the auth reactors
+        private final CredentialPool credentials;
+
+        //Striped locks: the login state, token and channel of a player are changed under the write lock of its stripe.
+        //Reads of several of them are optimistic, taking the read lock only if a change got in meanwhile
+        private static final StampedLock[] locks = new StampedLock[LOCK_STRIPES];
+        static {
+            for (int i = 0; i < LOCK_STRIPES; i++) {
+                locks[i] = new StampedLock();
+            }
+        }
+
+        //Indexes for lookups, kept consistent by the player setters
+        private static final Map<String, Player> playersByUsername = new ConcurrentHashMap<>();
+        private static final Map<SocketChannel, Player> playersByChannel = new ConcurrentHashMap<>();
 
-        public  Map<String,Long> tokenExpiration = new HashMap<>();
+        private PlayerStore store;
+        private PersistenceWriter writer;
 
-        private static List<Player> playerList;
+        //Data of the server (players, token keys, word list), relative to src/ where the server runs
+        static final Path DATA_DIRECTORY = Paths.get("../data");
 
         PlayerDatabase() {
-            playerList = new ArrayList<>();
-            try {
+            this(DATA_DIRECTORY);
+        }
 
-                List<String> lines = Files.readAllLines(this.path, StandardCharsets.UTF_8);
-                for (int i = 2; i < lines.size(); i++) {
-                    String[] playerData = lines.get(i).split(" - ");
-                    Player p = new Player(playerData[0], playerData[1], Integer.parseInt(playerData[2]));
-                    playerList.add(p);
+        PlayerDatabase(Path dataDirectory) {
+            this.textPath = dataDirectory.resolve("PlayerDatabase.txt");
+            this.storePath = dataDirectory.resolve("PlayerDatabase.bin");
+            this.tokens = new SessionTokens(dataDirectory.resolve("TokenKeys.bin"));
+            this.credentials = new CredentialPool();
+            try {
+                //First start imports the old text database into the binary store
+                if(!Files.exists(storePath) && Files.exists(textPath)){
+                    store = PlayerStore.importText(textPath, storePath);
+                }else{
+                    store = PlayerStore.open(storePath);
                 }
 
+                //Tokens are not read back, they are checked with the saved token keys after a restart
+                store.forEach((slot, username, password, elo, wins, losses, token, expiration) -> {
+                    Player p = new Player(username, password, elo);
+                    p.slot = slot;
+                    p.wins = wins;
+                    p.losses = losses;
+                    playersByUsername.put(p.getUsername(), p);
+                });
+
+                //Changes are written to the store by a separate thread
+                writer = new PersistenceWriter(store);
+                writer.start();
+                Metrics.gauge("persistence.queued", "Store changes waiting to be written", writer::getQueueSize);
+                Metrics.gauge("persistence.records", "Store changes written", writer::getRecords);
+                Metrics.gauge("persistence.batches", "Groups of store changes committed", writer::getBatches);
+                Metrics.gauge("players.registered", "Players in the database", () -> playersByUsername.size());
+
             } catch (IOException e) {
                 System.out.print("Invalid Path");
             }
         }
 
         public static Player getPlayer(String username){
-            return playerList.stream().filter(player -> player.getUsername().equals(username)).findAny().orElse(null);
+            return playersByUsername.get(username);
         }
 
-        public static Player getPlayerByToken(String token){
-            return playerList.stream().filter(player -> player.getWaitingToken().equals(token)).findAny().orElse(null);
+        //Player named by a valid token
+        public Player getPlayerByToken(String token){
+            SessionTokens.Claims claims = tokens.verify(token);
+            return claims == null ? null : getPlayer(claims.getUsername());
         }
 
         public  static Player getPlayerByChannel(SocketChannel channel){
-            return playerList.stream()
-                    .filter(player -> {
-                        SocketChannel playerChannel = player.getChannel();
-                        return playerChannel != null && playerChannel.equals(channel);
-                    })
-                    .findAny()
-                    .orElse(null);
+            if(channel == null){
+                return null;
+            }
+            return playersByChannel.get(channel);
         }
 
-        public boolean registerPlayer(String username, String password) {
-            if (playerList.stream().anyMatch(player -> player.getUsername().equals(username)) || username.equals("") || password.equals("")) {
-                return false;
-            } else {
-                Player p = new Player(username, password, STARTING_ELO);
-                p.setLoggedIn(true);
-                playerList.add(p);
+        private static StampedLock lockOf(Player player) {
+            int hash = player.getUsername().hashCode();
+            return locks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+        }
 
-                String playerData = "\n" + username + " - " + password + " - " + STARTING_ELO ;
-                try {
-                    Files.writeString(this.path, playerData, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
-                } catch (IOException e) {
-                    System.out.print("Invalid Path");
-                }
+        //Move player from old key to new key in an index (empty and null keys are not indexed)
+        private static <K> void reindex(Map<K, Player> index, K oldKey, K newKey, Player player) {
+            if(oldKey != null && !oldKey.equals(newKey)){
+                index.remove(oldKey, player);
+            }
+            if(newKey != null && !"".equals(newKey)){
+                index.put(newKey, player);
+            }
+        }
 
-                return true;
+        //Waits until the new player is committed to the store
+        public boolean registerPlayer(String username, String password) {
+            Player p = createPlayer(username, password);
+            return p != null && savePlayer(p).join();
+        }
+
+        //Hash the password and add the player to the index, null if the username is invalid or taken
+        private Player createPlayer(String username, String password) {
+            if (username.equals("") || password.equals("")
+                    || username.length() > PlayerStore.MAX_USERNAME_LENGTH || password.length() > PlayerStore.MAX_PASSWORD_LENGTH) {
+                return null;
+            }
+            //Taken usernames are refused before spending time on the hash
+            if (playersByUsername.containsKey(username)) {
+                return null;
             }
+            String hash = PasswordHasher.hash(password);
+            Player p = new Player(username, hash, STARTING_ELO);
+            p.setLoggedIn(true);
+            //The index is concurrent, only one registration of the username gets in
+            if (playersByUsername.putIfAbsent(username, p) != null) {
+                return null;
+            }
+            return p;
         }
 
-        public boolean authenticatePlayer(String username, String password) {
-            Player p = playerList.stream().filter(player -> player.getUsername().equals(username)).findAny().orElse(null);
-            if(p == null || !p.getPassword().equals(password) || p.isLoggedIn){
-
-                if(p == null){
-                    System.out.println("Player not found");
-                }else if(!p.getPassword().equals(password)){
-                    System.out.println(password + " // " + p.getPassword());
-                    System.out.println("Password incorrect");
-                }else{
-                    System.out.println("Player already logged in");
+        //Completed with true once the record of the new player is committed (forced to disk in group durability)
+        private CompletableFuture<Boolean> savePlayer(Player p) {
+            if(writer == null){
+                return CompletableFuture.completedFuture(true);
+            }
+            String username = p.getUsername(), hash = p.getPassword();
+            return writer.submit(store -> p.slot = store.append(username, hash, STARTING_ELO)).handle((done, error) -> {
+                if(error != null){
+                    System.out.println("Failed to save player " + username);
+                    playersByUsername.remove(username, p);
+                    return false;
                 }
+                return true;
+            });
+        }
 
+        public boolean authenticatePlayer(String username, String password) {
+            Player p = getPlayer(username);
+            if(p == null){
+                System.out.println("Player not found");
                 return false;
-            }else{
-                p.setLoggedIn(true);
-                return true;
             }
+            String stored = p.getPassword();
+            if(!PasswordHasher.verify(stored, password)){
+                System.out.println("Password incorrect");
+                return false;
+            }
+            if(PasswordHasher.needsRehash(stored)){
+                updatePassword(p, PasswordHasher.hash(password));
+            }
+            StampedLock lock = lockOf(p);
+            long stamp = lock.writeLock();
+            try {
+                if(!p.isLoggedIn){
+                    p.setLoggedIn(true);
+                    return true;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            System.out.println("Player already logged in");
+            return false;
         }
 
-        public boolean authenticatePlayerByToken(String token) {
+        //Log in the player named by a valid token, the token becomes its waiting token
+        public Player authenticatePlayerByToken(String token) {
             //Find player for this token
-            Player p = playerList.stream().filter(player -> player.getWaitingToken().equals(token)).findAny().orElse(null);
+            Player p = getPlayerByToken(token);
             //Player not found
-            if(p == null || p.isLoggedIn){
-                if(p == null){
-                    System.out.println("Player not found");
-                }else{
-                    System.out.println("Player already logged in");
+            if(p == null){
+                System.out.println("Player not found");
+                return null;
+            }
+            StampedLock lock = lockOf(p);
+            long stamp = lock.writeLock();
+            try {
+                if(!p.isLoggedIn){
+                    p.setLoggedIn(true);
+                    p.setWaitingToken(token);
+                    return p;
                 }
-                return false;
-            }else{
-                p.setLoggedIn(true);
-                return true;
+            } finally {
+                lock.unlockWrite(stamp);
             }
+            System.out.println("Player already logged in");
+            return null;
         }
 
+        //Replace the waiting token of the player, the previous one can not be used anymore
         public void updatePlayerWaitingToken(String username, String waitingToken) {
             Player player = getPlayer(username);
             if (player != null) {
+                StampedLock lock = lockOf(player);
+                long stamp = lock.writeLock();
                 String oldWaitingToken = player.getWaitingToken();
-                tokenExpiration.remove(oldWaitingToken);
-                tokenExpiration.put(waitingToken,System.currentTimeMillis() + (TOKEN_EXPIRATION_TIME));
                 player.setWaitingToken(waitingToken);
+                lock.unlockWrite(stamp);
+                if(!oldWaitingToken.isEmpty() && !oldWaitingToken.equals(waitingToken)){
+                    tokens.revoke(oldWaitingToken);
+                }
+            }
+        }
+
+        //Player signed out or left the queue for a game, its token can not be used to reconnect
+        public void revokeToken(Player player) {
+            StampedLock lock = lockOf(player);
+            long stamp = lock.writeLock();
+            String token = player.getWaitingToken();
+            player.setWaitingToken("");
+            lock.unlockWrite(stamp);
+            if(!token.isEmpty()){
+                tokens.revoke(token);
+            }
+        }
+
+        //Player left without signing out (idle timeout), its token is revoked
+        public void logOut(Player player) {
+            disconnectPlayer(player);
+            revokeToken(player);
+        }
+
+        //Connection of the player lost or closed, it keeps its token to come back while the token is valid
+        public void disconnectPlayer(Player player) {
+            StampedLock lock = lockOf(player);
+            long stamp = lock.writeLock();
+            player.setLoggedIn(false);
+            lock.unlockWrite(stamp);
+        }
+
+        //Register on the credential pool, the hash is computed there. The registration is acknowledged once the player
+        //is committed, without holding a pool thread while the writer commits the group
+        public CompletableFuture<Boolean> registerPlayerAsync(String username, String password) {
+            return credentials.submit(() -> createPlayer(username, password))
+                    .thenCompose(p -> p == null ? CompletableFuture.completedFuture(false) : savePlayer(p));
+        }
+
+        //Log in on the credential pool, the password check is done there
+        public CompletableFuture<Boolean> authenticatePlayerAsync(String username, String password) {
+            return credentials.submit(() -> authenticatePlayer(username, password));
+        }
+
+        //Replace a plain text password or a hash of an older cost
+        private void updatePassword(Player player, String hash) {
+            player.password = hash;
+            if(writer != null){
+                writer.submit(store -> {
+                    if(player.getSlot() >= 0){
+                        store.updatePassword(player.getSlot(), hash);
+                    }
+                });
+            }
+        }
+
+        //Write rating and stats of the player in place in the store
+        public void saveRating(Player player) {
+            if(writer != null){
+                int elo = player.getElo(), wins = player.getWins(), losses = player.getLosses();
+                writer.submit(store -> {
+                    if(player.getSlot() >= 0){
+                        store.updateRating(player.getSlot(), elo, wins, losses);
+                    }
+                });
+            }
+        }
+
+        public PersistenceWriter getWriter() {
+            return writer;
+        }
+
+        //Commit pending changes, called when the server stops
+        public void close() {
+            credentials.shutdown();
+            if(writer != null){
+                writer.shutdown();
             }
         }
 
-        public static List<Player> getPlayers() {
-            return playerList;
+        public static Collection<Player> getPlayers() {
+            return playersByUsername.values();
         }
 
         public void signOutPlayer(String username) {
-            Player p = playerList.stream().filter(player -> player.getUsername().equals(username)).findAny().orElse(null);
-            if(p == null || !p.isLoggedIn){
-                if(p == null){
-                    System.out.println("Player not found");
-                }else{
+            Player p = getPlayer(username);
+            if(p == null){
+                System.out.println("Player not found");
+                return;
+            }
+            StampedLock lock = lockOf(p);
+            long stamp = lock.writeLock();
+            try {
+                if(!p.isLoggedIn){
                     System.out.println("Player not logged in");
+                }else{
+                    p.isLoggedIn = false;
+                    p.setChannel(null);
                 }
-            }else{
-                p.isLoggedIn = false;
-                p.setChannel(null);
+            } finally {
+                lock.unlockWrite(stamp);
             }
         }
 
-        public String generateSessionToken(){
-            SecureRandom secureRandom = new SecureRandom();
-            Base64.Encoder base64Encoder = Base64.getUrlEncoder();
-            byte[] randomBytes = new byte[24];
-            secureRandom.nextBytes(randomBytes);
-            return base64Encoder.encodeToString(randomBytes);
+        public String generateSessionToken(String username){
+            return tokens.issue(username);
+        }
+
+        //Link the player to the connection it authenticated on
+        public static void attachSession(Player player, Session session, SocketChannel channel) {
+            StampedLock lock = lockOf(player);
+            long stamp = lock.writeLock();
+            try {
+                player.setChannel(channel);
+                player.setSession(session);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
 
+        //Channel of the player if it is logged in, null otherwise. Never a channel from before a sign out with the state after it
+        public static SocketChannel connectedChannel(Player player) {
+            StampedLock lock = lockOf(player);
+            long stamp = lock.tryOptimisticRead();
+            boolean loggedIn = player.isLoggedIn;
+            SocketChannel channel = player.channel;
+            if(!lock.validate(stamp)){
+                stamp = lock.readLock();
+                try {
+                    loggedIn = player.isLoggedIn;
+                    channel = player.channel;
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return loggedIn ? channel : null;
         }
 
-        public void addSessionToken(String username, String sessionToken){
-            playerList.stream().filter(player -> player.getUsername().equals(username)).findAny().ifPresent(p -> p.waitingToken = sessionToken);
+        //Waiting token of the player if it is logged in, null otherwise
+        public static String loggedInToken(Player player) {
+            StampedLock lock = lockOf(player);
+            long stamp = lock.tryOptimisticRead();
+            boolean loggedIn = player.isLoggedIn;
+            String token = player.waitingToken;
+            if(!lock.validate(stamp)){
+                stamp = lock.readLock();
+                try {
+                    loggedIn = player.isLoggedIn;
+                    token = player.waitingToken;
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return loggedIn ? token : null;
         }
 
     }
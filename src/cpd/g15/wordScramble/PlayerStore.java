@@ -0,0 +1,204 @@
+package cpd.g15.wordScramble;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Player records stored in a memory-mapped file with fixed size slots,
+ * so the rating of a player is updated in place without rewriting the file.
+ *
+ * File layout: header (64 bytes) followed by records of RECORD_SIZE bytes.
+ * Header: magic | version | record size | record count
+ * Record: username (length + 32 bytes) | password (length + 127 bytes) | elo | wins | losses
+ *         | token (length + 63 bytes) | token expiration (long)
+ * The token fields are no longer written, session tokens are signed and checked without the store.
+ * The password field holds a salted hash (PasswordHasher), or a plain text password written by an older version.
+ */
+public class PlayerStore {
+
+    private static final int MAGIC = 0x57535053; // "WSPS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 256;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    public static final int MAX_USERNAME_LENGTH = 32;
+    public static final int MAX_PASSWORD_LENGTH = 127;
+    public static final int MAX_TOKEN_LENGTH = 63;
+
+    //Offsets inside a record
+    private static final int USERNAME_OFFSET = 0;
+    private static final int PASSWORD_OFFSET = USERNAME_OFFSET + 1 + MAX_USERNAME_LENGTH;
+    private static final int ELO_OFFSET = PASSWORD_OFFSET + 1 + MAX_PASSWORD_LENGTH;
+    private static final int WINS_OFFSET = ELO_OFFSET + 4;
+    private static final int LOSSES_OFFSET = WINS_OFFSET + 4;
+    private static final int TOKEN_OFFSET = LOSSES_OFFSET + 4;
+    private static final int TOKEN_EXPIRATION_OFFSET = TOKEN_OFFSET + 1 + MAX_TOKEN_LENGTH;
+
+    //Offsets inside the header
+    private static final int COUNT_OFFSET = 12;
+
+    private final FileChannel fileChannel;
+    private volatile MappedByteBuffer buffer;
+    private int capacity;
+    private int recordCount;
+
+    public interface RecordConsumer {
+        void accept(int slot, String username, String password, int elo, int wins, int losses, String token, long tokenExpiration);
+    }
+
+    private PlayerStore(FileChannel fileChannel) {
+        this.fileChannel = fileChannel;
+    }
+
+    /**
+     * Opens the store, creating an empty one if the file does not exist.
+     */
+    public static PlayerStore open(Path path) throws IOException {
+        boolean exists = Files.exists(path) && Files.size(path) >= HEADER_SIZE;
+        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        PlayerStore store = new PlayerStore(fileChannel);
+
+        if (exists) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            fileChannel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != RECORD_SIZE) {
+                fileChannel.close();
+                throw new StreamCorruptedException("Not a player store: " + path);
+            }
+            store.recordCount = header.getInt();
+            int fileCapacity = (int) ((fileChannel.size() - HEADER_SIZE) / RECORD_SIZE);
+            store.map(Math.max(fileCapacity, store.recordCount));
+        } else {
+            store.map(INITIAL_CAPACITY);
+            store.buffer.putInt(0, MAGIC);
+            store.buffer.putInt(4, VERSION);
+            store.buffer.putInt(8, RECORD_SIZE);
+            store.buffer.putInt(COUNT_OFFSET, 0);
+        }
+        return store;
+    }
+
+    /**
+     * Creates the store from the old text database (USERNAME - PASSWORD - ELO, after two header lines).
+     */
+    public static PlayerStore importText(Path textPath, Path storePath) throws IOException {
+        PlayerStore store = open(storePath);
+        List<String> lines = Files.readAllLines(textPath, StandardCharsets.UTF_8);
+        for (int i = 2; i < lines.size(); i++) {
+            if (lines.get(i).isBlank()) {
+                continue;
+            }
+            String[] playerData = lines.get(i).split(" - ");
+            store.append(playerData[0], playerData[1], Integer.parseInt(playerData[2].trim()));
+        }
+        store.force();
+        return store;
+    }
+
+    //Calls the consumer for every stored record
+    public void forEach(RecordConsumer consumer) {
+        MappedByteBuffer buffer = this.buffer;
+        int count;
+        synchronized (this) {
+            count = recordCount;
+        }
+        for (int slot = 0; slot < count; slot++) {
+            int offset = recordOffset(slot);
+            consumer.accept(slot,
+                    getString(buffer, offset + USERNAME_OFFSET),
+                    getString(buffer, offset + PASSWORD_OFFSET),
+                    buffer.getInt(offset + ELO_OFFSET),
+                    buffer.getInt(offset + WINS_OFFSET),
+                    buffer.getInt(offset + LOSSES_OFFSET),
+                    getString(buffer, offset + TOKEN_OFFSET),
+                    buffer.getLong(offset + TOKEN_EXPIRATION_OFFSET));
+        }
+    }
+
+    /**
+     * Appends a new player record.
+     * @return the slot of the record
+     */
+    public synchronized int append(String username, String password, int elo) throws IOException {
+        if (recordCount == capacity) {
+            map(capacity * 2);
+        }
+        int slot = recordCount;
+        int offset = recordOffset(slot);
+        putString(buffer, offset + USERNAME_OFFSET, username, MAX_USERNAME_LENGTH);
+        putString(buffer, offset + PASSWORD_OFFSET, password, MAX_PASSWORD_LENGTH);
+        buffer.putInt(offset + ELO_OFFSET, elo);
+        buffer.putInt(offset + WINS_OFFSET, 0);
+        buffer.putInt(offset + LOSSES_OFFSET, 0);
+        putString(buffer, offset + TOKEN_OFFSET, "", MAX_TOKEN_LENGTH);
+        buffer.putLong(offset + TOKEN_EXPIRATION_OFFSET, 0);
+
+        //Count is written last so a crash never exposes a half written record
+        recordCount++;
+        buffer.putInt(COUNT_OFFSET, recordCount);
+        return slot;
+    }
+
+    //Update rating and stats of a player in place
+    public void updateRating(int slot, int elo, int wins, int losses) {
+        MappedByteBuffer buffer = this.buffer;
+        int offset = recordOffset(slot);
+        buffer.putInt(offset + ELO_OFFSET, elo);
+        buffer.putInt(offset + WINS_OFFSET, wins);
+        buffer.putInt(offset + LOSSES_OFFSET, losses);
+    }
+
+    //Replace the password (hash) of a player in place
+    public void updatePassword(int slot, String password) throws IOException {
+        putString(this.buffer, recordOffset(slot) + PASSWORD_OFFSET, password, MAX_PASSWORD_LENGTH);
+    }
+
+    public synchronized int size() {
+        return recordCount;
+    }
+
+    //Flush changes to disk
+    public void force() {
+        buffer.force();
+    }
+
+    public void close() throws IOException {
+        force();
+        fileChannel.close();
+    }
+
+    private void map(int newCapacity) throws IOException {
+        this.buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * RECORD_SIZE);
+        this.capacity = newCapacity;
+    }
+
+    private static int recordOffset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private static void putString(ByteBuffer buffer, int offset, String value, int maxLength) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > maxLength) {
+            throw new IOException("Value too long for player record: " + value);
+        }
+        buffer.put(offset, (byte) bytes.length);
+        buffer.put(offset + 1, bytes);
+    }
+
+    private static String getString(ByteBuffer buffer, int offset) {
+        int length = buffer.get(offset) & 0xFF;
+        byte[] bytes = new byte[length];
+        buffer.get(offset + 1, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,40 +1,68 @@
 package cpd.g15.wordScramble;
 
 import java.io.IOException;
-import java.net.SocketException;
 import java.nio.channels.*;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Predicate;
 
 public class Queue extends Thread{
 
-    private final ReentrantReadWriteLock lockPlayerQueue;
-    private final ReentrantReadWriteLock lockPlayerDB;
     private final int gameMode;
-    private Selector selector;
-    protected static TreeSet<Player> playerQueue;
+    private final Selector selector;
+    //Waiting players by join time, changed and iterated by any thread without locking
+    protected static ConcurrentSkipListSet<QueueEntry> playerQueue;
+    //Current entry of each queued player, replacing or removing it is atomic per player
+    private final Map<Player,QueueEntry> queueEntries;
 
     private static final long DISCONNECTION_TIMEOUT = 20000;
-    private static final double RELAXATION_FACTOR = 1.4;
-    private static final int INITIAL_ACCEPTABLE_DIFFERENCE = 100;
-    private long lastTimeTeamCreated;
-    private final Map<SocketChannel,Long> clientsTimeouts;
-    private int acceptableDifference;
-    public Queue(ReentrantReadWriteLock lockPlayerDB, ReentrantReadWriteLock lockPlayerQueue, int gameMode) {
-        this.lockPlayerQueue = lockPlayerQueue;
-        this.lockPlayerDB = lockPlayerDB;
+    private static final long TOLERANCE_CHECK_INTERVAL = 1000;
+    private static final long TIMER_TICK = 100;
+    private static final Metrics.Counter TIMEOUTS = Metrics.counter("queue.timeouts", "Clients disconnected from the queue for being idle");
+    private static final Metrics.Counter TOKEN_REFRESHES = Metrics.counter("queue.token.refreshes", "Tokens refreshed while waiting");
+    private static final Metrics.Counter EXPIRED = Metrics.counter("queue.expired", "Disconnected players removed when their token expired");
+    private static final Metrics.Histogram WAIT = Metrics.histogram("queue.wait", "Time players waited in the queue before a match");
+    private final MatchmakingSignal matchmakingSignal;
+    //Idle timeouts, token refreshes and token expiry, fired by the queue thread
+    private final TimingWheel timers;
+    private final Map<Session,TimingWheel.Timeout> clientsTimeouts;
+    private final Map<Session,TimingWheel.Timeout> tokenRefreshes;
+    //Queued players by ELO, used by ranked matchmaking
+    private final EloBucketIndex eloIndex;
+    //Work handed over by other threads, run by the queue thread once its selector dropped the cancelled keys
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    public Queue(int gameMode, MatchmakingSignal matchmakingSignal) throws IOException {
+        this.matchmakingSignal = matchmakingSignal;
         this.gameMode = gameMode;
-        this.acceptableDifference = INITIAL_ACCEPTABLE_DIFFERENCE;
-        this.clientsTimeouts = new HashMap<>();
-        this.lastTimeTeamCreated = System.currentTimeMillis();
-        playerQueue = createQueue();
+        //Opened here so clients can be registered before the thread starts
+        this.selector = Selector.open();
+        this.timers = new TimingWheel(TIMER_TICK);
+        this.clientsTimeouts = new ConcurrentHashMap<>();
+        this.tokenRefreshes = new ConcurrentHashMap<>();
+        this.eloIndex = new EloBucketIndex();
+        this.queueEntries = new ConcurrentHashMap<>();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        playerQueue = new ConcurrentSkipListSet<>();
+        //The ELO index holds every queued entry and counts them without iterating the queue
+        Metrics.gauge("queue.depth", "Players in the waiting queue", eloIndex::size);
     }
 
     public void run() {
         try {
-            this.selector = Selector.open();
             while(true){
-                this.selector.select(1);
+                //Sleep until a client sends something or the next timer is due
+                long wakeUp = timers.nextWakeUp();
+                long now = System.currentTimeMillis();
+                if(wakeUp == Long.MAX_VALUE){
+                    this.selector.select();
+                }else if(wakeUp > now){
+                    this.selector.select(wakeUp - now);
+                }else{
+                    this.selector.selectNow();
+                }
+                runTasks();
                 Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
                 while (iterator.hasNext()){
                     SelectionKey key = iterator.next();
@@ -46,79 +74,176 @@ public class Queue extends Thread{
                     if(key.isReadable()){
                         read(key);
                     }
+                    if(key.isValid() && key.isWritable()){
+                        ((Session) key.attachment()).handleWritable();
+                    }
                 }
-                checkTimeouts();
+                timers.advance(System.currentTimeMillis());
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void checkTimeouts() throws IOException {
-        //If DISCONNECT_TIMEOUT has passed since last message, close connection
-        for (Map.Entry<SocketChannel, Long> clientTimeout : clientsTimeouts.entrySet()){
-            //Timeout as passed
-            if(clientTimeout.getValue() < System.currentTimeMillis()){
-                closeClientTimeout(clientTimeout.getKey());
-                clientsTimeouts.remove(clientTimeout.getKey());
+    /**
+     * Runs the task on the queue thread after the keys cancelled before it was queued are dropped from the selector,
+     * for example to switch the channels of matched players to blocking mode.
+     */
+    public void afterKeysDropped(Runnable task) {
+        tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    private void runTasks() throws IOException {
+        if(tasks.isEmpty()){
+            return;
+        }
+        //Only the tasks queued before this select, their keys were cancelled before it
+        List<Runnable> due = new ArrayList<>();
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            due.add(task);
+        }
+        this.selector.selectNow();
+        for (Runnable dueTask : due) {
+            dueTask.run();
+        }
+    }
+
+    //Start the idle timeout and token refresh of a client connected to the queue
+    private void startTimers(Session session) {
+        scheduleIdleTimeout(session, System.currentTimeMillis() + DISCONNECTION_TIMEOUT);
+        scheduleTokenRefresh(session);
+    }
+
+    //Client left the queue
+    private void stopTimers(Session session) {
+        timers.cancel(clientsTimeouts.remove(session));
+        timers.cancel(tokenRefreshes.remove(session));
+    }
+
+    private void scheduleIdleTimeout(Session session, long deadline) {
+        timers.cancel(clientsTimeouts.put(session, timers.schedule(deadline, () -> idleTimeout(session))));
+    }
+
+    //The client may leave the queue (leaveQueue, stopTimers) on another thread while its timer fires,
+    //the timer is only set again or acted on if it is still the one in the map
+    private void idleTimeout(Session session) {
+        TimingWheel.Timeout current = clientsTimeouts.get(session);
+        if(current == null){
+            return;
+        }
+        //The timeout is not moved on every message, it is checked against the last read when it fires
+        long deadline = session.getLastReadTime() + DISCONNECTION_TIMEOUT;
+        if(deadline > System.currentTimeMillis()){
+            TimingWheel.Timeout next = timers.schedule(deadline, () -> idleTimeout(session));
+            if(!clientsTimeouts.replace(session, current, next)){
+                timers.cancel(next);
             }
+            return;
+        }
+        //If DISCONNECT_TIMEOUT has passed since last message, close connection, unless the client left meanwhile
+        if(!clientsTimeouts.remove(session, current)){
+            return;
+        }
+        timers.cancel(tokenRefreshes.remove(session));
+        closeClientTimeout(session);
+    }
+
+    //Refresh the token of a waiting player when it expires
+    private void scheduleTokenRefresh(Session session) {
+        TimingWheel.Timeout next = nextTokenRefresh(session);
+        if(next != null){
+            timers.cancel(tokenRefreshes.put(session, next));
         }
     }
 
-    private TreeSet<Player> createQueue() {
-        //Game mode Simple queue by join time > username
-        if(this.gameMode == 1){
-            return new TreeSet<>(
-                    Comparator.<Player>comparingLong(Player::getJoinTime)
-                            .thenComparing(Player::getUsername) // to ensure unique connection
-            );
+    private TimingWheel.Timeout nextTokenRefresh(Session session) {
+        Player p = session.getPlayer();
+        //Only logged in players get refreshes, the token read is the one of the login state read
+        String token = p == null ? null : Player.PlayerDatabase.loggedInToken(p);
+        Long expiration = token == null ? null : Server.playerDatabase.tokens.expirationOf(token);
+        return expiration == null ? null : timers.schedule(expiration, () -> refreshToken(session));
+    }
+
+    private void refreshToken(Session session) {
+        Player p = session.getPlayer();
+        TimingWheel.Timeout current = tokenRefreshes.get(session);
+        if(current == null || !clientsTimeouts.containsKey(session) || Player.PlayerDatabase.loggedInToken(p) == null){
+            return;
+        }
+        TOKEN_REFRESHES.increment();
+        //Create new token
+        String newToken = Server.playerDatabase.generateSessionToken(p.getUsername());
+        //Update token
+        Server.playerDatabase.updatePlayerWaitingToken(p.getUsername(),newToken);
+        //Send token to client
+        try {
+            new Message(Message.Type.QUEUE_TOKEN_REFRESH, newToken).writeObject(session);
+        } catch (IOException e) {
+            System.out.println("Failed to send token to " + p.getUsername());
         }
+        //Same as the idle timeout, not set again if the client left the queue meanwhile
+        TimingWheel.Timeout next = nextTokenRefresh(session);
+        if(next != null && !tokenRefreshes.replace(session, current, next)){
+            timers.cancel(next);
+        }
+    }
+
+    //Remove a disconnected player from the queue once its token expires, unless it came back
+    private void scheduleTokenExpiry(Player player) {
+        Long expiration = Server.playerDatabase.tokens.expirationOf(player.getWaitingToken());
+        QueueEntry entry = queueEntries.get(player);
+        if(expiration != null && entry != null){
+            timers.schedule(expiration, () -> expireToken(entry));
+        }
+    }
 
-        //Game mode Simple queue by rank > join time > username
-        return new TreeSet<>(
-                Comparator.<Player>comparingInt(Player::getElo).reversed()
-                        .thenComparing(Player::getJoinTime)
-                        .thenComparing(Player::getUsername) // to ensure unique connection
-        );
+    //Only the entry the player had when it disconnected is removed, not one from a later login
+    private void expireToken(QueueEntry entry) {
+        Player player = entry.getPlayer();
+        Long expiration = Server.playerDatabase.tokens.expirationOf(player.getWaitingToken());
+        if(expiration != null && expiration <= System.currentTimeMillis() && !player.getLoggedIn() && removeFromQueue(entry)){
+            EXPIRED.increment();
+        }
     }
 
-    public void closeClient(SocketChannel clientChannel){
-        //Reset player state
-        Player player = Player.PlayerDatabase.getPlayerByChannel(clientChannel);
+    public void closeClient(Session session){
+        //Reset player state, the player keeps its place (join time) in the queue until the token expires
+        Player player = session.getPlayer();
+        stopTimers(session);
         if(player != null){
-            player.setLoggedIn(false);
-            player.setJoinTime(0);
+            Server.playerDatabase.disconnectPlayer(player);
+            scheduleTokenExpiry(player);
         }
+        signalMatchmaking();
 
         try {
-            clientChannel.close();
+            session.getChannel().close();
 
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public void closeClientTimeout(SocketChannel clientChannel) {
-        lockPlayerDB.writeLock().lock();
-        Player player = Player.PlayerDatabase.getPlayerByChannel(clientChannel);
-        if(player != null){
-            player.setLoggedIn(false);
-            player.setJoinTime(0);
-        }
-        lockPlayerDB.writeLock().unlock();
+    public void closeClientTimeout(Session session) {
+        Player player = session.getPlayer();
 
-        lockPlayerQueue.writeLock().lock();
+        TIMEOUTS.increment();
         if(player != null){
-            playerQueue.remove(player);
+            removeFromQueue(player);
+            //Logged out, the token can not bring the player back
+            Server.playerDatabase.logOut(player);
         }
 
-        lockPlayerQueue.writeLock().unlock();
+        signalMatchmaking();
 
         Message messageTimeout = new Message(Message.Type.QUEUE_CLIENT_TIMEOUT, "Timeout. You are being disconnected.");
 
         try {
-            clientChannel.close();
-            messageTimeout.writeObject(clientChannel);
+            //Best effort, whatever the socket accepts right away is sent before closing
+            messageTimeout.writeObject(session);
+            session.getChannel().close();
 
         }catch (ClosedChannelException e){
             System.out.println("Closed channel");
@@ -126,119 +251,114 @@ public class Queue extends Thread{
             throw new RuntimeException(e);
         }
     }
-    private void dealWithMessage(Message message, SocketChannel clientChannel) throws IOException {
+    private void dealWithMessage(Message message, Session session) throws IOException {
         Message messageToSend;
-        //Update client timeout
-        clientsTimeouts.put(clientChannel,System.currentTimeMillis() + DISCONNECTION_TIMEOUT);
-        Player p = Player.PlayerDatabase.getPlayerByChannel(clientChannel);
-        if(p != null){
-            String token = p.getWaitingToken();
-            if(token != null){
-                if(Server.playerDatabase.tokenExpiration.containsKey(token)){
-                    //Check if token expired
-                    if(Server.playerDatabase.tokenExpiration.get(token) < System.currentTimeMillis()){
-                        if(p.isLoggedIn){
-                            //Create new token
-                            String newToken = Server.playerDatabase.generateSessionToken();
-                            //Update token
-                            Server.playerDatabase.updatePlayerWaitingToken(p.getUsername(),newToken);
-                            //Send token to client
-                            messageToSend = new Message(Message.Type.QUEUE_TOKEN_REFRESH, newToken);
-                            messageToSend.writeObject(clientChannel);
-                        }
-                    }
-                }
-            }
-        }
+        //Idle timeout and token refresh are handled by the timers
         switch (message.getType()){
-            case QUEUE_TOKEN_REFRESH_OK,QUEUE_RESPONSE:
+            case QUEUE_TOKEN_REFRESH_OK:
+                //Client sends back the token it saved
+                Player player = session.getPlayer();
+                SessionTokens.Claims claims = Server.playerDatabase.tokens.verify((String) message.getObject());
+                if(player != null && (claims == null || !claims.getUsername().equals(player.getUsername()))){
+                    System.out.println("Token refresh not confirmed by " + player.getUsername());
+                }
+                messageToSend = new Message(Message.Type.QUEUE_WAITING, "queue...");
+                messageToSend.writeObject(session);
+                break;
+            case QUEUE_RESPONSE:
                 messageToSend = new Message(Message.Type.QUEUE_WAITING, "queue...");
-                messageToSend.writeObject(clientChannel);
+                messageToSend.writeObject(session);
                 break;
         }
     }
 
     private void read(SelectionKey key) throws IOException {
-        SocketChannel clientChannel = (SocketChannel) key.channel();
-        Message message;
+        Session session = (Session) key.attachment();
+        boolean open;
 
         try {
-            message = Message.readObject(clientChannel);
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        } catch (SocketException e) {
+            //Read everything available, it can contain several messages or only part of one
+            open = session.read();
+
+            Message message;
+            while ((message = session.nextMessage()) != null) {
+                dealWithMessage(message,session);
+            }
+        } catch (IOException e) {
 
             System.out.println("Client disconnected");
-            closeClient(clientChannel);
+            closeClient(session);
             return;
         }
 
-        if(message == null){
+        if(!open){
             System.out.println("Client disconnected from queue: ");
-            closeClient(clientChannel);
-            return;
+            closeClient(session);
         }
-        dealWithMessage(message,clientChannel);
     }
 
-    private boolean addPlayerToQueue(String username){
-        //Get player by username
-        Player p = Player.PlayerDatabase.getPlayer(username);
-        lockPlayerQueue.writeLock().lock();
+    private boolean addPlayerToQueue(Player p){
         //Check if player is logged in
-        if(p != null && p.isLoggedIn){
-            //Set join time
-            p.setJoinTime(System.currentTimeMillis());
-            //Add player to queue
-            playerQueue.add(p);
-            lockPlayerQueue.writeLock().unlock();
+        if(p != null && p.getLoggedIn()){
+            //A new entry replaces the one of a player that logged in again while still waiting
+            queueEntries.compute(p, (player, previous) -> {
+                if(previous != null){
+                    playerQueue.remove(previous);
+                    eloIndex.remove(previous);
+                }
+                QueueEntry entry = new QueueEntry(player, System.currentTimeMillis());
+                playerQueue.add(entry);
+                eloIndex.add(entry);
+                return entry;
+            });
+            signalMatchmaking();
             return true;
         }
-        lockPlayerQueue.writeLock().unlock();
         return false;
     }
 
-    public void addPlayerToQueueAndRegisterChannel(String username, SocketChannel clientChannel) {
-        Player p = Player.PlayerDatabase.getPlayer(username);
-        p.setChannel(clientChannel);
-
-        //Add player to queue
-        if(addPlayerToQueue(username)) {
-            try {
-                //Register channel
-                clientChannel.register(this.selector,SelectionKey.OP_READ);
-                //Add client to timeouts
-                clientsTimeouts.put(clientChannel, System.currentTimeMillis() + DISCONNECTION_TIMEOUT);
-                this.selector.wakeup();
-
-                //Send queue start message
-                Message startQueue = new Message(Message.Type.QUEUE_START, "You are in queue");
-                startQueue.writeObject(clientChannel);
-
-            } catch (ClosedChannelException e) {
-                System.out.println("Failed to register clientChannel for " + username);
-                throw new RuntimeException(e);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    public void addPlayerToQueueAndRegisterChannel(Session session) {
+        Player p = session.getPlayer();
+        if(p == null || !p.getLoggedIn()){
+            return;
+        }
+
+        try {
+            //Register channel before adding to the queue, matchmaking can take the player right away
+            SelectionKey key = session.register(this.selector);
+            //Start client timers, the wakeup makes the selector see their deadlines
+            startTimers(session);
+            this.selector.wakeup();
+
+            //Send queue start message
+            Message startQueue = new Message(Message.Type.QUEUE_START, "You are in queue");
+            startQueue.writeObject(session);
+
+            //Add player to queue
+            if(!addPlayerToQueue(p)) {
+                key.cancel();
+                stopTimers(session);
             }
+        } catch (ClosedChannelException e) {
+            System.out.println("Failed to register clientChannel for " + p.getUsername());
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
     //Resume connection to queue when player connects by token
-    public void resumeToQueue(String token, SocketChannel clientChannel) {
-        //Get player by token
-        Player p = Player.PlayerDatabase.getPlayerByToken(token);
-        //Set player channel
-        p.setChannel(clientChannel);
-
+    public void resumeToQueue(Session session) {
         try {
             //Register channel to queue selector
-            clientChannel.register(this.selector,SelectionKey.OP_READ);
-            clientsTimeouts.put(clientChannel, System.currentTimeMillis() + DISCONNECTION_TIMEOUT);
+            session.register(this.selector);
+            startTimers(session);
             this.selector.wakeup();
 
             Message startQueue = new Message(Message.Type.QUEUE_START, "You are in queue");
-            startQueue.writeObject(clientChannel);
+            startQueue.writeObject(session);
+            //Player is active again
+            signalMatchmaking();
 
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -247,112 +367,173 @@ public class Queue extends Thread{
 
     // Match players in queue
     public ArrayList<Player> matchPlayersSimple(int numberOfPlayers) {
-        //Create List of players to play
+        //Create List of players to play, check if player is logged in and connected to the queue
+        ArrayList<QueueEntry> team = selectSimpleTeam(playerQueue, numberOfPlayers, this::isWaitingInQueue);
+        //Players can leave while the queue is iterated, then there is no match this time
+        if (team.size() < numberOfPlayers || !claim(team)) {
+            return new ArrayList<>();
+        }
         ArrayList<Player> matchPlayers = new ArrayList<>();
+        for (QueueEntry entry : team) {
+            leaveQueue(entry.getPlayer());
+            matchPlayers.add(entry.getPlayer());
+        }
+        //Let the selector drop the cancelled keys right away
+        selector.wakeup();
 
-        lockPlayerQueue.writeLock().lock();
-        // create descending iterator to get players
-        Iterator<Player> iterator = playerQueue.descendingIterator();
+        return matchPlayers;
+    }
 
-        while (iterator.hasNext() && matchPlayers.size() < numberOfPlayers) {
-            Player player = iterator.next();
+    //Up to numberOfPlayers waiting entries, taken from the end of the queue
+    static ArrayList<QueueEntry> selectSimpleTeam(NavigableSet<QueueEntry> queue, int numberOfPlayers, Predicate<QueueEntry> waiting) {
+        ArrayList<QueueEntry> team = new ArrayList<>();
 
-            // check if player is logged in
-            if (player.getLoggedIn()) {
+        // create descending iterator to get players
+        Iterator<QueueEntry> iterator = queue.descendingIterator();
 
-                // Unregister player channel from queue
-                SelectionKey key = player.getChannel().keyFor(selector);
-                if(key != null){
-                    key.cancel();
-                }
-                clientsTimeouts.remove(player.getChannel());
-                // set waiting token to empty string
-                player.setWaitingToken("");
-                // add player to match list
-                matchPlayers.add(player);
-                // remove player from queue
-                iterator.remove();
+        while (iterator.hasNext() && team.size() < numberOfPlayers) {
+            QueueEntry entry = iterator.next();
+            if (waiting.test(entry)) {
+                team.add(entry);
             }
         }
-        lockPlayerQueue.writeLock().unlock();
-
-        return matchPlayers;
+        return team;
     }
 
-    //TODO:Review this algorithm
-    public ArrayList<Player> matchPlayersRanked(int numPlayersPerGame) {
-        ArrayList<Player> activePlayers = getActivePlayersInQueue();
-        while (!activePlayers.isEmpty()){
-            ArrayList<Player> teamTest = new ArrayList<>();
-            if(activePlayers.size() < numPlayersPerGame){
-                break;
-            }
-            for(int i = 0; i < numPlayersPerGame; i++){
-                teamTest.add(activePlayers.get(i));
+    //Match a team for every waiting player that has opponents inside its own tolerance, longest waiting first
+    public List<ArrayList<Player>> matchPlayersRanked(int numPlayersPerGame) {
+        List<ArrayList<QueueEntry>> teams = RankedMatcher.findTeams(playerQueue, eloIndex, numPlayersPerGame,
+                System.currentTimeMillis(), this::isWaitingInQueue, this::claim);
+        List<ArrayList<Player>> matches = new ArrayList<>();
+        for(ArrayList<QueueEntry> team : teams){
+            ArrayList<Player> players = new ArrayList<>();
+            for(QueueEntry entry : team){
+                leaveQueue(entry.getPlayer());
+                players.add(entry.getPlayer());
             }
+            matches.add(players);
+        }
+
+        if(!teams.isEmpty()){
+            //Let the selector drop the cancelled keys right away
+            selector.wakeup();
+        }
+        return matches;
+    }
 
-            if(isAcceptableTeam(teamTest)){
-                this.lastTimeTeamCreated = System.currentTimeMillis();
-                this.acceptableDifference = INITIAL_ACCEPTABLE_DIFFERENCE;
-                lockPlayerQueue.writeLock().lock();
-                for(Player player:teamTest){
-                    this.lastTimeTeamCreated = System.currentTimeMillis();
-                    //Cancel key for queue channel
-                    player.getChannel().keyFor(selector).cancel();
-                    clientsTimeouts.remove(player.getChannel());
-                    //Remove player from queue
-                    playerQueue.remove(player);
+    //Take every entry of a team out of the queue, or none if one of them already left
+    private boolean claim(List<QueueEntry> team) {
+        for (int i = 0; i < team.size(); i++) {
+            if (!removeFromQueue(team.get(i))) {
+                for (int j = 0; j < i; j++) {
+                    restoreToQueue(team.get(j));
                 }
-                lockPlayerQueue.writeLock().unlock();
-                return teamTest;
-            }else{
-                activePlayers.remove(0);
+                return false;
             }
         }
-        if(System.currentTimeMillis() >= this.lastTimeTeamCreated + 60000){
-            adjustAcceptableRange();
+        long now = System.currentTimeMillis();
+        for (QueueEntry entry : team) {
+            WAIT.record((now - entry.getJoinTime()) * 1000);
+        }
+        return true;
+    }
+
+    //Matched player stops being served by the queue thread
+    private void leaveQueue(Player player) {
+        //Cancel key for queue channel
+        SelectionKey key = player.getChannel().keyFor(selector);
+        if(key != null){
+            key.cancel();
+        }
+        stopTimers(player.getSession());
+        //Token can not be used to get back in the queue
+        Server.playerDatabase.revokeToken(player);
+    }
+
+    /**
+     * Takes the entry out of the queue and the ELO index. Only one thread succeeds for an entry.
+     * @return false if the entry already left the queue (timeout, other match or the player joined again)
+     */
+    private boolean removeFromQueue(QueueEntry entry) {
+        if(!queueEntries.remove(entry.getPlayer(), entry)){
+            return false;
+        }
+        playerQueue.remove(entry);
+        eloIndex.remove(entry);
+        return true;
+    }
+
+    private void removeFromQueue(Player player) {
+        QueueEntry entry = queueEntries.get(player);
+        if(entry != null){
+            removeFromQueue(entry);
         }
+    }
 
-        return null;
+    //Put back an entry of a team that could not be formed, in its old place, unless the player joined again
+    private void restoreToQueue(QueueEntry entry) {
+        queueEntries.computeIfAbsent(entry.getPlayer(), player -> {
+            playerQueue.add(entry);
+            eloIndex.add(entry);
+            return entry;
+        });
     }
 
-    private void adjustAcceptableRange() {
-        this.acceptableDifference *= RELAXATION_FACTOR;
+    //Tolerances widen with the waiting time, so the ranked queue is matched again while players wait
+    public long getNextRelaxationTime() {
+        if(gameMode == 1 || playerQueue.isEmpty()){
+            return Long.MAX_VALUE;
+        }
+        return System.currentTimeMillis() + TOLERANCE_CHECK_INTERVAL;
     }
 
-    private boolean isAcceptableTeam(ArrayList<Player> matchPlayers) {
-        return matchPlayers.get(0).getElo() - matchPlayers.get(matchPlayers.size() - 1).getElo() <= this.acceptableDifference;
+    //Wake up matchmaking, called when players join or leave and when a game finishes
+    public void signalMatchmaking() {
+        matchmakingSignal.signal();
     }
 
 
 
-    public static TreeSet<Player> getPlayerQueue(){
+    //Weakly consistent view, safe to iterate while players join and leave
+    public static Collection<QueueEntry> getPlayerQueue(){
         return playerQueue;
     }
 
 
+    //Player is logged in and its channel is already registered with the queue selector
+    private boolean isWaitingInQueue(Player player){
+        //Login state and channel read together, the channel can be cleared by a sign out between two reads
+        SocketChannel channel = Player.PlayerDatabase.connectedChannel(player);
+        if(channel == null){
+            return false;
+        }
+        SelectionKey key = channel.keyFor(selector);
+        return key != null && key.isValid();
+    }
+
+    //Entry is still the current one of its player and the player is waiting
+    private boolean isWaitingInQueue(QueueEntry entry){
+        return queueEntries.get(entry.getPlayer()) == entry && isWaitingInQueue(entry.getPlayer());
+    }
+
     public ArrayList<Player> getActivePlayersInQueue(){
         ArrayList<Player> matchPlayers = new ArrayList<>();
-        lockPlayerQueue.readLock().lock();
-        for(Player player:playerQueue){
-            if(player.isLoggedIn){
-                matchPlayers.add(player);
+        for(QueueEntry entry:playerQueue){
+            if(isWaitingInQueue(entry)){
+                matchPlayers.add(entry.getPlayer());
             }
         }
-        lockPlayerQueue.readLock().unlock();
         return matchPlayers;
     }
 
-    //Remove players in queue that are logged out and token has expired
-    public void cleanDisconnectedPlayersWithExpiredToken(){
-        lockPlayerQueue.writeLock().lock();
-        for(Player p: playerQueue){
-            Long tokenExpiration = Server.playerDatabase.tokenExpiration.get(p.getWaitingToken());
-            if(tokenExpiration != null && tokenExpiration < System.currentTimeMillis() && !p.getLoggedIn()){
-                playerQueue.remove(p);
+    public int countActivePlayersInQueue(){
+        int count = 0;
+        for(QueueEntry entry:playerQueue){
+            if(isWaitingInQueue(entry)){
+                count++;
             }
         }
-        lockPlayerQueue.writeLock().unlock();
+        return count;
     }
 
 }
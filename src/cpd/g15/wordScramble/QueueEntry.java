@@ -0,0 +1,44 @@
+package cpd.g15.wordScramble;
+
+/**
+ * Snapshot of a player taken when it joins the waiting queue.
+ * The queue is ordered by join time and username, and the ELO buckets use the ELO of the snapshot,
+ * so the rating of a player changing while it waits never moves it in the ordered sets.
+ */
+public final class QueueEntry implements Comparable<QueueEntry> {
+
+    private final Player player;
+    private final String username;
+    private final int elo;
+    private final long joinTime;
+
+    public QueueEntry(Player player, long joinTime) {
+        this.player = player;
+        this.username = player.getUsername();
+        this.elo = player.getElo();
+        this.joinTime = joinTime;
+    }
+
+    public Player getPlayer() {
+        return player;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public int getElo() {
+        return elo;
+    }
+
+    public long getJoinTime() {
+        return joinTime;
+    }
+
+    //Join time > username, to ensure unique entries
+    @Override
+    public int compareTo(QueueEntry other) {
+        int byTime = Long.compare(joinTime, other.joinTime);
+        return byTime != 0 ? byTime : username.compareTo(other.username);
+    }
+}
@@ -0,0 +1,63 @@
+package cpd.g15.wordScramble;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Forms ranked teams around the players that waited the longest.
+ * Each player accepts opponents up to a tolerance that widens with their own waiting time:
+ * INITIAL_TOLERANCE points, multiplied by RELAXATION_FACTOR for every RELAXATION_INTERVAL waited, up to MAX_TOLERANCE.
+ * Players are taken in join order and their closest opponents inside the tolerance are found in the ELO buckets,
+ * so a player far from everyone else is matched once their tolerance reaches the others.
+ * Join time and ELO are read from the queue entries, snapshots taken when the players joined.
+ */
+public class RankedMatcher {
+
+    public static final int INITIAL_TOLERANCE = 100;
+    public static final double RELAXATION_FACTOR = 1.4;
+    public static final long RELAXATION_INTERVAL = 60000;
+    //Wider than any ELO difference between two players, a longer wait does not widen the tolerance further
+    public static final int MAX_TOLERANCE = 1_000_000;
+
+    //ELO difference a player accepts after waiting since it joined the queue
+    public static int toleranceOf(QueueEntry entry, long now) {
+        long waited = Math.max(0, now - entry.getJoinTime());
+        return (int) Math.min(MAX_TOLERANCE, INITIAL_TOLERANCE * Math.pow(RELAXATION_FACTOR, waited / (double) RELAXATION_INTERVAL));
+    }
+
+    /**
+     * A team is only formed if claim takes all its entries out of the queue, entries can leave the queue
+     * (timeouts, other matches) while the teams are searched.
+     * @param entriesByJoinTime queue entries ordered by join time
+     * @param available entries that can be matched, the others are skipped
+     * @param claim takes the entries of a team out of the queue and the index, false if one of them already left
+     * @return every team found, the longest waiting player first
+     */
+    public static List<ArrayList<QueueEntry>> findTeams(Iterable<QueueEntry> entriesByJoinTime, EloBucketIndex index, int teamSize, long now,
+                                                       Predicate<QueueEntry> available, Predicate<List<QueueEntry>> claim) {
+        List<ArrayList<QueueEntry>> teams = new ArrayList<>();
+        Set<QueueEntry> matched = new HashSet<>();
+
+        for (QueueEntry entry : entriesByJoinTime) {
+            if (matched.contains(entry) || !available.test(entry)) {
+                continue;
+            }
+            ArrayList<QueueEntry> opponents = index.findClosest(entry.getElo(), teamSize - 1, toleranceOf(entry, now),
+                    opponent -> opponent != entry && !matched.contains(opponent) && available.test(opponent));
+            if (opponents == null) {
+                continue;
+            }
+            ArrayList<QueueEntry> team = new ArrayList<>(teamSize);
+            team.add(entry);
+            team.addAll(opponents);
+            if (claim.test(team)) {
+                matched.addAll(team);
+                teams.add(team);
+            }
+        }
+        return teams;
+    }
+}
@@ -0,0 +1,43 @@
+package cpd.g15.wordScramble;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Original codec based on Java serialization.
+ * Kept to compare against {@link BinaryCodec}.
+ */
+public class SerializationCodec implements MessageCodec {
+
+    @Override
+    public ByteBuffer encode(Message message) throws IOException {
+        //Create byte stream
+        ByteArrayOutputStream byteOUTStream = new ByteArrayOutputStream();
+        //Create object stream
+        ObjectOutputStream objectOUTStream = new ObjectOutputStream(byteOUTStream);
+        //Write message to stream
+        objectOUTStream.writeObject(message);
+        //Convert message to byte array
+        byte[] messageBytes = byteOUTStream.toByteArray();
+        //Create buffer to hold message size and message content
+        ByteBuffer buffer = ByteBuffer.allocate(4 + messageBytes.length);
+        buffer.putInt(messageBytes.length);
+        buffer.put(messageBytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public Message decode(ByteBuffer content) throws IOException {
+        byte[] messageBytes = new byte[content.remaining()];
+        content.get(messageBytes);
+
+        // Create object input stream with byte array input stream
+        ObjectInputStream objectInStream = new ObjectInputStream(new ByteArrayInputStream(messageBytes));
+        try {
+            return (Message) objectInStream.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+}
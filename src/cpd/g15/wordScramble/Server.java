@@ -3,22 +3,26 @@ package cpd.g15.wordScramble;
 import java.net.InetSocketAddress;
 import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Set;
 import java.util.Timer;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class Server {
 
     protected static Player.PlayerDatabase playerDatabase = new Player.PlayerDatabase();
-    protected static ExecutorService executorService = Executors.newFixedThreadPool(5);
+    protected static GamePool gamePool;
+    //loop: games hosted by the game event loops, threads: one (virtual when available) thread per game
+    private static final boolean THREAD_PER_GAME = "threads".equalsIgnoreCase(System.getProperty("wordScramble.gameExecution", "loop"));
     private static int NUM_PLAYERS_PER_GAME;
     private static final int DISPLAY_INTERVAL = 1000;
+    //Connections waiting for the acceptor, a login storm overflows the default of 50 and the extra clients hang
+    private static final int ACCEPT_BACKLOG = Integer.getInteger("wordScramble.acceptBacklog", 1024);
+    private static final Metrics.Counter MATCHES = Metrics.counter("matchmaking.matches", "Games started by matchmaking");
+    private static final Metrics.Counter GAMES_ENDED = Metrics.counter("games.ended", "Games finished");
+    private static final Metrics.Histogram MATCHMAKING_LATENCY = Metrics.histogram("matchmaking.latency", "Time of a matchmaking pass over the queue");
 
-    protected static List<WordScrambleRunnable> currentGames = new ArrayList<>();
+    protected static Set<WordScrambleRunnable> currentGames = ConcurrentHashMap.newKeySet();
 
 
     public static void main(String[] args) {
@@ -54,52 +58,70 @@ public class Server {
         try {
             //Start Server Socket Channel
             ServerSocketChannel serverChannel = ServerSocketChannel.open();
-            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
             serverChannel.configureBlocking(false);
             System.out.println("Server is listening on port " + port);
 
-            //Create lock for player database
-            ReentrantReadWriteLock lockPlayerDB = new ReentrantReadWriteLock();
-            //Create lock for player queue
-            ReentrantReadWriteLock lockPlayerQueue = new ReentrantReadWriteLock();
+            //Map the word list before the first match needs it
+            WordDictionary.get();
+
+
+            //Signal used to wake up matchmaking when the queue or the games change
+            MatchmakingSignal matchmakingSignal = new MatchmakingSignal();
+
+            //Start the game event loops
+            if(THREAD_PER_GAME){
+                System.out.println("Running one " + (GameThreads.isVirtual() ? "virtual" : "platform") + " thread per game");
+            }else{
+                gamePool = new GamePool();
+            }
 
             //Create queue thread
-            Queue queue = new Queue(lockPlayerDB, lockPlayerQueue, gameMode);
+            Queue queue = new Queue(gameMode, matchmakingSignal);
             queue.start();
 
-            //Create auth thread
-            Auth auth = new Auth(serverChannel, lockPlayerDB, queue);
-            auth.start();
+            //Create the acceptor thread and the auth reactors it hands connections to
+            Acceptor acceptor = new Acceptor(serverChannel, queue);
+            acceptor.start();
+
+            //Commit pending player changes when the server stops
+            Runtime.getRuntime().addShutdownHook(new Thread(playerDatabase::close));
+
+            //Metrics on JMX and the local HTTP endpoint
+            Metrics.gauge("games.active", "Games being played", currentGames::size);
+            MetricsExporter.start();
 
-            //Timer for displaying in intervals
-            Timer timer = new Timer();
-            timer.scheduleAtFixedRate(new ServerStatus(), 0, DISPLAY_INTERVAL);
+            //Timer for displaying in intervals, only if the console status was asked for
+            if(ServerStatus.MODE != ServerStatus.Mode.OFF){
+                Timer timer = new Timer(true);
+                timer.scheduleAtFixedRate(new ServerStatus(), 0, DISPLAY_INTERVAL);
+            }
 
 
 
             while (true) {
-                queue.cleanDisconnectedPlayersWithExpiredToken();
-                if(queue.getActivePlayersInQueue().size() >= NUM_PLAYERS_PER_GAME){
-                    int activeThreads = ((ThreadPoolExecutor) executorService).getActiveCount();
-                    int maxThreads = ((ThreadPoolExecutor) executorService).getMaximumPoolSize();
-                    //Number of active threads is equal or higher than the max number of threads a game cannot be started
-                    if(activeThreads >= maxThreads){
-                        continue;
-                    }
-                    ArrayList<Player> playersGame;
-                    if(gameMode == 1){
-                        playersGame = queue.matchPlayersSimple(NUM_PLAYERS_PER_GAME);
-                    }else{
-                        playersGame = queue.matchPlayersRanked(NUM_PLAYERS_PER_GAME);
+                //Sleep until something changes in the queue or games or ranked tolerances must be checked again
+                //(expired tokens are removed from the queue by the queue timers)
+                long timeout = queue.getNextRelaxationTime() - System.currentTimeMillis();
+                matchmakingSignal.await(Math.max(1, timeout));
+                long passStart = System.nanoTime();
+
+                //Create as many games as there are players for
+                if(gameMode == 1){
+                    while (queue.countActivePlayersInQueue() >= NUM_PLAYERS_PER_GAME) {
+                        ArrayList<Player> playersGame = queue.matchPlayersSimple(NUM_PLAYERS_PER_GAME);
+                        if(playersGame.size() != NUM_PLAYERS_PER_GAME){
+                            break;
+                        }
+                        startGame(playersGame, queue);
                     }
-
-                    if(playersGame != null && (playersGame.size() == NUM_PLAYERS_PER_GAME)){
-                        //Create a new thread to handle the game
-                        WordScrambleRunnable game = new WordScrambleRunnable(playersGame, queue);
-                        currentGames.add(game);
-                        executorService.submit(game);
+                }else{
+                    //Every acceptable team is found in a single pass
+                    for(ArrayList<Player> playersGame : queue.matchPlayersRanked(NUM_PLAYERS_PER_GAME)){
+                        startGame(playersGame, queue);
                     }
                 }
+                MATCHMAKING_LATENCY.recordSince(passStart);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -108,6 +130,25 @@ public class Server {
         }
     }
 
+    private static void startGame(ArrayList<Player> playersGame, Queue queue) {
+        WordScrambleRunnable game = new WordScrambleRunnable(playersGame, queue);
+        game.setOnEnd(() -> {
+            //Free the game slot
+            currentGames.remove(game);
+            GAMES_ENDED.increment();
+            queue.signalMatchmaking();
+        });
+        currentGames.add(game);
+        MATCHES.increment();
+        if(THREAD_PER_GAME){
+            //The channels go to blocking mode, only possible once the queue selector dropped their keys
+            queue.afterKeysDropped(() -> GameThreads.newThread(game).start());
+        }else{
+            //Host the game on the least loaded game loop
+            gamePool.host(game);
+        }
+    }
+
 
 
 
@@ -4,36 +4,109 @@ import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.TimerTask;
-import java.util.concurrent.ThreadPoolExecutor;
-
-import static cpd.g15.wordScramble.Server.executorService;
 
+/**
+ * Console status, opt-in with -DwordScramble.status=summary|full (off by default, the metrics are
+ * read from JMX or the HTTP endpoint instead).
+ * summary: one block of metrics with rates per second, full: also every player, the queue and the games.
+ */
 class ServerStatus extends TimerTask {
+
+    enum Mode {
+        OFF,
+        SUMMARY,
+        FULL
+    }
+
+    static final Mode MODE = Mode.valueOf(System.getProperty("wordScramble.status", "off").toUpperCase());
     private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    //Counter values of the previous run, to print rates
+    private final Map<String, Long> previous = new HashMap<>();
+    private long previousTime;
+
     @Override
     public void run() {
         Long currentTimeMillis = System.currentTimeMillis();
+        double seconds = previousTime == 0 ? 0 : (currentTimeMillis - previousTime) / 1000.0;
+        previousTime = currentTimeMillis;
         System.out.println("\n\n\n\n\nCurrent time: " + formatTime(currentTimeMillis));
-        System.out.println("Number of games: " + ((ThreadPoolExecutor) executorService).getActiveCount());
-        printPlayerList();
+        System.out.printf("Connections: %d (%.0f/s) | logins: %.0f/s | token logins: %.0f/s | failures: %.0f/s | auth p99: %d us%n",
+                counter("connections.accepted"), rate("connections.accepted", seconds), rate("auth.logins", seconds),
+                rate("auth.token.logins", seconds), rate("auth.failures", seconds), percentile("auth.latency", 99));
+        System.out.printf("Queue: %d | matches: %d (%.1f/s) | wait p50: %d ms | matchmaking p99: %d us%n",
+                gauge("queue.depth"), counter("matchmaking.matches"), rate("matchmaking.matches", seconds),
+                percentile("queue.wait", 50) / 1000, percentile("matchmaking.latency", 99));
+        System.out.println("Number of games: " + gauge("games.active"));
+        if (Server.gamePool != null) {
+            StringBuilder loads = new StringBuilder("Game loops:");
+            for (GameLoop loop : Server.gamePool.getLoops()) {
+                loads.append(" ").append(loop.getName()).append("=").append(loop.getLoad());
+            }
+            System.out.println(loads);
+        }
+        long messagesIn = 0, messagesOut = 0;
+        for (Message.Type type : Message.Type.values()) {
+            messagesIn += counter("messages.in." + type);
+            messagesOut += counter("messages.out." + type);
+        }
+        System.out.printf("Messages in: %.0f/s out: %.0f/s | bytes in: %.1f KB/s out: %.1f KB/s%n",
+                rate("messages.in", messagesIn, seconds), rate("messages.out", messagesOut, seconds),
+                rate("bytes.in", seconds) / 1024, rate("bytes.out", seconds) / 1024);
+        PersistenceWriter writer = Server.playerDatabase.getWriter();
+        if (writer != null) {
+            System.out.printf("Persistence: queued %d | batches %d | avg batch %.1f | max batch %d | avg commit %.2f ms | max commit %.2f ms%n",
+                    writer.getQueueSize(), writer.getBatches(), writer.getAverageBatchSize(), writer.getMaxBatchSize(),
+                    writer.getAverageCommitMillis(), writer.getMaxCommitMillis());
+        }
+        if (MODE == Mode.FULL) {
+            printPlayerList();
+        }
+    }
+
+    private static long counter(String key) {
+        Metrics.Metric metric = Metrics.get(key);
+        return metric instanceof Metrics.Counter ? ((Metrics.Counter) metric).get() : 0;
+    }
+
+    private static long gauge(String key) {
+        Metrics.Metric metric = Metrics.get(key);
+        return metric instanceof Metrics.Gauge ? ((Metrics.Gauge) metric).get() : 0;
+    }
+
+    private static long percentile(String key, double percentile) {
+        Metrics.Metric metric = Metrics.get(key);
+        return metric instanceof Metrics.Histogram ? ((Metrics.Histogram) metric).getPercentile(percentile) : 0;
+    }
+
+    private double rate(String key, double seconds) {
+        return rate(key, counter(key), seconds);
+    }
+
+    //Increase per second since the previous run
+    private double rate(String key, long value, double seconds) {
+        Long last = previous.put(key, value);
+        return last == null || seconds == 0 ? 0 : (value - last) / seconds;
     }
 
     private void printPlayerList() {
         System.out.println("\nPLAYER DATABASE");
-        System.out.println("Username      | Password  | Rank          | LoggedIn | Token                            | ExpireTime");
+        System.out.println("Username      | Password  | Rank          | LoggedIn | Token                                                              | ExpireTime");
         System.out.println("--------------------------------------------------------------------------------------------------------");
         for (Player p : Player.PlayerDatabase.getPlayers()) {
 
-            System.out.printf("%-14s | %-8s | %-13s | %-8s | %-32s | %s%n",
-                    p.getUsername(), p.getPassword(),p.getRank()+ " ("+p.getElo()+") ", p.isLoggedIn, p.getWaitingToken(),
-                    formatTime(Server.playerDatabase.tokenExpiration.get(p.getWaitingToken())));
+            System.out.printf("%-14s | %-8s | %-13s | %-8s | %-66s | %s%n",
+                    p.getUsername(), p.getPassword(),p.getRank()+ " ("+p.getElo()+") ", p.getLoggedIn(), p.getWaitingToken(),
+                    formatTime(Server.playerDatabase.tokens.expirationOf(p.getWaitingToken())));
         }
         System.out.println("--------------------------------------------------------------------------------------------------------");
         System.out.println("\nPLAYER QUEUE");
         System.out.println("--------------------------------------------------------------------------------------------------------");
-        for (Player p : Queue.getPlayerQueue()) {
-            System.out.printf("%-9s ->",p.getUsername());
+        for (QueueEntry entry : Queue.getPlayerQueue()) {
+            System.out.printf("%-9s ->",entry.getUsername());
         }
         System.out.println("\n--------------------------------------------------------------------------------------------------------");
         System.out.println("\nCURRENT GAMES");
@@ -43,7 +116,7 @@ class ServerStatus extends TimerTask {
                 for (Player p : game.getPlayers()) {
                     System.out.printf("%s ", p.getUsername());
                 }
-                System.out.println();
+                System.out.printf("| broadcasts: %d%n", game.getBroadcastCount());
         }
         System.out.println("--------------------------------------------------------------------------------------------------------");
     }
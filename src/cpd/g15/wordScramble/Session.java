@@ -0,0 +1,150 @@
+package cpd.g15.wordScramble;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * State of one client connection, attached to its SelectionKey.
+ * Created when an Auth reactor takes a new connection and attached again when the channel
+ * is registered with the Queue and game selectors, so the player is always at hand.
+ */
+public class Session {
+
+    enum AuthState {
+        STARTED,
+        REGISTER,
+        LOGIN,
+        //Credentials being checked on the credential pool
+        CHECKING,
+        AUTHENTICATED
+    }
+
+    private static final Metrics.Counter BYTES_IN = Metrics.counter("bytes.in", "Bytes received from clients");
+    private static final Metrics.Counter[] MESSAGES_IN = Metrics.counters("messages.in", "Messages received from clients", "type", Message.Type.values());
+    private static final Metrics.Counter[] MESSAGES_OUT = Metrics.counters("messages.out", "Messages sent to clients", "type", Message.Type.values());
+    private static final Metrics.Counter SHARED_VIEWS = Metrics.counter("messages.shared.views", "Views of a shared frame queued, one ByteBuffer per recipient");
+
+    private final SocketChannel channel;
+    private final FrameDecoder decoder;
+    private final OutboundQueue outbound;
+    private final long createdTime;
+    private volatile Player player;
+    private volatile WordScrambleRunnable game;
+    private volatile AuthState authState;
+    private volatile long lastReadTime;
+
+    public Session(SocketChannel channel) {
+        this.channel = channel;
+        this.decoder = new FrameDecoder();
+        this.outbound = new OutboundQueue(channel);
+        this.createdTime = System.currentTimeMillis();
+        this.lastReadTime = this.createdTime;
+        this.authState = AuthState.STARTED;
+    }
+
+    //Register the channel for reading with this session, pending writes keep going on the new selector
+    public SelectionKey register(Selector selector) throws IOException {
+        //Back from a thread per game match
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ, this);
+        outbound.setKey(key);
+        return key;
+    }
+
+    /**
+     * Switches the channel to blocking reads for the thread per game mode.
+     * The channel must not be registered anymore: a cancelled key is only dropped on the next select of its selector,
+     * so thread per game matches are started by the Queue once that happened (Queue.afterKeysDropped).
+     */
+    public void useBlocking() throws IOException {
+        channel.configureBlocking(true);
+    }
+
+    /**
+     * Reads everything available on the channel, in blocking mode waits until something arrives.
+     * @return false if the channel reached end of stream
+     */
+    public boolean read() throws IOException {
+        this.lastReadTime = System.currentTimeMillis();
+        long before = decoder.getBytesRead();
+        try {
+            return decoder.read(channel);
+        } finally {
+            BYTES_IN.add(decoder.getBytesRead() - before);
+        }
+    }
+
+    //Next complete message received or null
+    public Message nextMessage() throws IOException {
+        Message message = decoder.next();
+        if (message != null) {
+            MESSAGES_IN[message.getType().ordinal()].increment();
+        }
+        return message;
+    }
+
+    //Write queued frames when the selector reports the channel as writable
+    public void handleWritable() {
+        outbound.flush();
+    }
+
+    public boolean send(Message message) throws IOException {
+        MESSAGES_OUT[message.getType().ordinal()].increment();
+        return outbound.enqueue(Message.getCodec().encode(message));
+    }
+
+    //Send a frame shared with other connections, each connection gets its own view of the bytes
+    public boolean sendFrame(Message.Type type, ByteBuffer sharedFrame) {
+        MESSAGES_OUT[type.ordinal()].increment();
+        //The view is a new ByteBuffer object, the bytes of the frame are not copied
+        SHARED_VIEWS.increment();
+        return outbound.enqueue(sharedFrame.duplicate());
+    }
+
+    //Link the session and the player once authenticated
+    public void authenticated(Player player) {
+        this.player = player;
+        this.authState = AuthState.AUTHENTICATED;
+        Player.PlayerDatabase.attachSession(player, this, channel);
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public Player getPlayer() {
+        return player;
+    }
+
+    //Game the connection was last registered with
+    public WordScrambleRunnable getGame() {
+        return game;
+    }
+
+    public void setGame(WordScrambleRunnable game) {
+        this.game = game;
+    }
+
+    public AuthState getAuthState() {
+        return authState;
+    }
+
+    public void setAuthState(AuthState authState) {
+        this.authState = authState;
+    }
+
+    public long getCreatedTime() {
+        return createdTime;
+    }
+
+    public long getLastReadTime() {
+        return lastReadTime;
+    }
+
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+}
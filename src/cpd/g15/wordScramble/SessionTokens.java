@@ -0,0 +1,260 @@
+package cpd.g15.wordScramble;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Self-validating session tokens: the token carries the username, issue time and expiration time
+ * and is authenticated with an HMAC of the server key, so checking a token needs no player lookup or lock.
+ *
+ * Token: base64(username).issued.expiration.keyId.base64(mac) (times in base 36)
+ *
+ * The key is rotated every KEY_ROTATION_INTERVAL, the previous key is kept to check the tokens issued before.
+ * Keys are saved in keyPath so tokens still work after a restart.
+ * Tokens of players that signed out or were matched are revoked until they expire (revocations are not saved).
+ */
+public class SessionTokens {
+
+    public static final long TOKEN_EXPIRATION_TIME = 50000;
+    private static final long KEY_ROTATION_INTERVAL = 3600000;
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int KEY_LENGTH = 32;
+    private static final int MAC_LENGTH = 16;
+
+    public static class Claims {
+        private final String username;
+        private final long issued;
+        private final long expiration;
+
+        private Claims(String username, long issued, long expiration) {
+            this.username = username;
+            this.issued = issued;
+            this.expiration = expiration;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public long getIssued() {
+            return issued;
+        }
+
+        public long getExpiration() {
+            return expiration;
+        }
+    }
+
+    private static class Key {
+        private final int id;
+        private final long created;
+        private final SecretKeySpec spec;
+
+        private Key(int id, long created, byte[] bytes) {
+            this.id = id;
+            this.created = created;
+            this.spec = new SecretKeySpec(bytes, ALGORITHM);
+        }
+    }
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final Path keyPath;
+    private final SecureRandom random;
+    //Mac instances are not thread safe, one per thread
+    private final ThreadLocal<Mac> macs;
+    private volatile Key current;
+    private volatile Key previous;
+    //Mac of revoked tokens -> their expiration
+    private final Map<String, Long> revoked;
+    private long nextPurge;
+
+    public SessionTokens(Path keyPath) {
+        this.keyPath = keyPath;
+        this.random = new SecureRandom();
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                return Mac.getInstance(ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        this.revoked = new ConcurrentHashMap<>();
+        loadKeys();
+    }
+
+    //Create a token for the player valid for TOKEN_EXPIRATION_TIME
+    public String issue(String username) {
+        long now = System.currentTimeMillis();
+        if (now - current.created >= KEY_ROTATION_INTERVAL) {
+            rotate(now);
+        }
+        Key key = current;
+        String payload = ENCODER.encodeToString(username.getBytes(StandardCharsets.UTF_8))
+                + "." + Long.toString(now, 36)
+                + "." + Long.toString(now + TOKEN_EXPIRATION_TIME, 36)
+                + "." + key.id;
+        return payload + "." + ENCODER.encodeToString(sign(key, payload));
+    }
+
+    /**
+     * Checks the signature, expiration and revocation of a token.
+     * @return the claims of the token or null if it is not valid
+     */
+    public Claims verify(String token) {
+        Claims claims = parse(token);
+        if (claims == null || claims.expiration <= System.currentTimeMillis()
+                || revoked.containsKey(macOf(token))) {
+            return null;
+        }
+        return claims;
+    }
+
+    //Expiration time of a token with a valid signature, revoked or not, null otherwise
+    public Long expirationOf(String token) {
+        Claims claims = parse(token);
+        return claims == null ? null : claims.expiration;
+    }
+
+    //Token can not be used anymore until it expires
+    public void revoke(String token) {
+        Claims claims = parse(token);
+        if (claims == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (claims.expiration > now) {
+            revoked.put(macOf(token), claims.expiration);
+        }
+        //Drop revocations of expired tokens, they fail the expiration check anyway
+        synchronized (revoked) {
+            if (now >= nextPurge) {
+                nextPurge = now + TOKEN_EXPIRATION_TIME;
+                revoked.values().removeIf(expiration -> expiration <= now);
+            }
+        }
+    }
+
+    public int getRevokedCount() {
+        return revoked.size();
+    }
+
+    //Mac of a parsed token, re-encoded from its bytes so every spelling of the same mac is one revocation
+    private static String macOf(String token) {
+        return ENCODER.encodeToString(DECODER.decode(token.substring(token.lastIndexOf('.') + 1)));
+    }
+
+    //Signature checked, expiration and revocation not checked
+    private Claims parse(String token) {
+        if (token == null) {
+            return null;
+        }
+        String[] parts = token.split("\\.");
+        if (parts.length != 5) {
+            return null;
+        }
+        try {
+            int keyId = Integer.parseInt(parts[3]);
+            Key current = this.current, previous = this.previous;
+            Key key = keyId == current.id ? current : previous != null && keyId == previous.id ? previous : null;
+            if (key == null) {
+                return null;
+            }
+            byte[] mac = DECODER.decode(parts[4]);
+            //The decoder ignores the unused bits of the last character, only the canonical text of a mac is accepted,
+            //so a revoked token can not be used again by changing its last character
+            if (!ENCODER.encodeToString(mac).equals(parts[4])) {
+                return null;
+            }
+            if (!MessageDigest.isEqual(mac, sign(key, token.substring(0, token.lastIndexOf('.'))))) {
+                return null;
+            }
+            return new Claims(new String(DECODER.decode(parts[0]), StandardCharsets.UTF_8),
+                    Long.parseLong(parts[1], 36), Long.parseLong(parts[2], 36));
+        } catch (IllegalArgumentException e) {
+            //Malformed number or base64
+            return null;
+        }
+    }
+
+    private byte[] sign(Key key, String payload) {
+        Mac mac = macs.get();
+        try {
+            mac.init(key.spec);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] full = mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        byte[] truncated = new byte[MAC_LENGTH];
+        System.arraycopy(full, 0, truncated, 0, MAC_LENGTH);
+        return truncated;
+    }
+
+    private synchronized void rotate(long now) {
+        if (now - current.created < KEY_ROTATION_INTERVAL) {
+            //Already rotated by another thread
+            return;
+        }
+        previous = current;
+        current = newKey(current.id + 1, now);
+        saveKeys();
+    }
+
+    private Key newKey(int id, long created) {
+        byte[] bytes = new byte[KEY_LENGTH];
+        random.nextBytes(bytes);
+        return new Key(id, created, bytes);
+    }
+
+    //File: current key then previous key, each id (int) | created (long) | key bytes
+    private void loadKeys() {
+        try {
+            if (Files.exists(keyPath)) {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(keyPath));
+                current = readKey(buffer);
+                previous = buffer.hasRemaining() ? readKey(buffer) : null;
+                return;
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Invalid token keys, tokens issued before are not valid");
+        }
+        current = newKey(0, System.currentTimeMillis());
+        previous = null;
+        saveKeys();
+    }
+
+    private Key readKey(ByteBuffer buffer) {
+        int id = buffer.getInt();
+        long created = buffer.getLong();
+        byte[] bytes = new byte[KEY_LENGTH];
+        buffer.get(bytes);
+        return new Key(id, created, bytes);
+    }
+
+    private void saveKeys() {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * (4 + 8 + KEY_LENGTH));
+        for (Key key : new Key[]{current, previous}) {
+            if (key != null) {
+                buffer.putInt(key.id).putLong(key.created).put(key.spec.getEncoded());
+            }
+        }
+        try {
+            Files.write(keyPath, Arrays.copyOf(buffer.array(), buffer.position()));
+        } catch (IOException e) {
+            System.out.println("Failed to save token keys, tokens will not survive a restart");
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package cpd.g15.wordScramble;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel holding deadlines (idle timeouts, token expiry, token refresh).
+ * Level 0 has one slot per tick, every next level has slots SLOTS times wider. A deadline is put in the
+ * lowest level that reaches it and moves down a level when the wheel gets to its slot, so scheduling,
+ * cancelling and firing cost O(1) amortised and only expired deadlines are ever looked at.
+ * Deadlines fire up to one tick late, never early.
+ *
+ * Scheduling and cancelling can be done from any thread, advance is called by the thread owning the wheel.
+ */
+public class TimingWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    public static class Timeout {
+        private final long deadline;
+        private final Runnable task;
+        private long tick;
+        private Timeout previous;
+        private Timeout next;
+        private int level = -1;
+        private int slot;
+        private boolean cancelled;
+
+        private Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    private final long tickMillis;
+    private final Timeout[][] slots;
+    //Deadlines already due when scheduled, fired on the next advance
+    private final List<Timeout> due;
+    //Last tick processed
+    private long currentTick;
+    private int size;
+    private int lowerLevelSize;
+
+    public TimingWheel(long tickMillis) {
+        this.tickMillis = tickMillis;
+        this.slots = new Timeout[LEVELS][SLOTS];
+        this.due = new ArrayList<>();
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+    }
+
+    public synchronized Timeout schedule(long deadline, Runnable task) {
+        Timeout timeout = new Timeout(deadline, task);
+        //Round up so the deadline never fires early
+        timeout.tick = (deadline + tickMillis - 1) / tickMillis;
+        place(timeout);
+        size++;
+        return timeout;
+    }
+
+    public synchronized void cancel(Timeout timeout) {
+        if (timeout == null || timeout.cancelled) {
+            return;
+        }
+        timeout.cancelled = true;
+        if (timeout.level >= 0) {
+            unlink(timeout);
+            size--;
+        } else if (due.remove(timeout)) {
+            size--;
+        }
+    }
+
+    /**
+     * Moves the wheel to now and runs the tasks whose deadline passed, outside the lock.
+     * @return number of tasks run
+     */
+    public int advance(long now) {
+        List<Timeout> expired = new ArrayList<>();
+        synchronized (this) {
+            expired.addAll(due);
+            due.clear();
+            long targetTick = now / tickMillis;
+            if (size == expired.size()) {
+                //Nothing on the wheel, skip the idle ticks
+                currentTick = Math.max(currentTick, targetTick);
+            }
+            while (currentTick < targetTick) {
+                currentTick++;
+                cascade();
+                //Deadlines moved down to the current tick
+                expired.addAll(due);
+                due.clear();
+                Timeout timeout = slots[0][(int) (currentTick & SLOT_MASK)];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    unlink(timeout);
+                    expired.add(timeout);
+                    timeout = next;
+                }
+            }
+            size -= expired.size();
+            for (Timeout timeout : expired) {
+                timeout.cancelled = true;
+            }
+        }
+        for (Timeout timeout : expired) {
+            timeout.task.run();
+        }
+        return expired.size();
+    }
+
+    /**
+     * Time the wheel next has to be advanced: the next non empty tick of level 0,
+     * or the next time a higher level slot moves down.
+     * @return the time or Long.MAX_VALUE if nothing is scheduled
+     */
+    public synchronized long nextWakeUp() {
+        if (!due.isEmpty()) {
+            return 0;
+        }
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        long nextTick = Long.MAX_VALUE;
+        for (int i = 1; i <= SLOTS; i++) {
+            if (slots[0][(int) ((currentTick + i) & SLOT_MASK)] != null) {
+                nextTick = currentTick + i;
+                break;
+            }
+        }
+        if (size > lowerLevelSize) {
+            //First tick of the next level 1 slot, where higher level deadlines start moving down
+            nextTick = Math.min(nextTick, ((currentTick >> SLOT_BITS) + 1) << SLOT_BITS);
+        }
+        return nextTick * tickMillis;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    //Move the deadlines of the higher level slots reached at the current tick down the wheel
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                return;
+            }
+            int slot = (int) ((currentTick >> (SLOT_BITS * level)) & SLOT_MASK);
+            Timeout timeout = slots[level][slot];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                unlink(timeout);
+                place(timeout);
+                timeout = next;
+            }
+        }
+    }
+
+    private void place(Timeout timeout) {
+        long ticks = timeout.tick - currentTick;
+        if (ticks <= 0) {
+            timeout.level = -1;
+            due.add(timeout);
+            return;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && ticks >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        //Deadlines beyond the wheel wait in the farthest slot of the top level and are placed again from there
+        long tick = Math.min(timeout.tick, currentTick + (1L << (SLOT_BITS * LEVELS)) - 1);
+        int slot = (int) ((tick >> (SLOT_BITS * level)) & SLOT_MASK);
+
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.previous = null;
+        timeout.next = slots[level][slot];
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        slots[level][slot] = timeout;
+        if (level == 0) {
+            lowerLevelSize++;
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            slots[timeout.level][timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        if (timeout.level == 0) {
+            lowerLevelSize--;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.level = -1;
+    }
+}
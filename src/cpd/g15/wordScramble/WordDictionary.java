@@ -0,0 +1,352 @@
+package cpd.g15.wordScramble;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Words the matches are played with, read from a word list with one word per line.
+ * The file is memory-mapped and never copied to the heap: loading it builds an index with the offset of every word,
+ * bucketed by length, and a word is only turned into a String when a match picks it.
+ * Lines that are not 3 to 32 lowercase ASCII letters, or that only repeat one letter (they can not be scrambled), are skipped.
+ * Words are grouped in difficulty tiers by length, a match is played with a word of the tier of its weakest player.
+ *
+ * Options:
+ *  -DwordScramble.dictionary=path (word list, default words.txt in the data directory of the player database,
+ *  the built-in WORDS are used without it)
+ *  -DwordScramble.wordTier=easy|medium|hard (every match uses that tier, by default it follows the ranking of the players)
+ */
+public class WordDictionary {
+
+    static final int MIN_LENGTH = 3;
+    static final int MAX_LENGTH = 32;
+
+    //Words used when there is no word list
+    static final String[] WORDS = {"apple", "banana", "orange", "grape", "kiwi", "mango", "strawberry", "blueberry", "watermelon", "pineapple", "cherry", "lemon", "lime", "peach", "pear"};
+
+    private static final Path PATH = System.getProperty("wordScramble.dictionary") != null
+            ? Paths.get(System.getProperty("wordScramble.dictionary"))
+            : Player.PlayerDatabase.DATA_DIRECTORY.resolve("words.txt");
+    private static final String TIER = System.getProperty("wordScramble.wordTier", "");
+
+    //Difficulty tiers, by word length
+    public enum Tier {
+        EASY(MIN_LENGTH, 5),
+        MEDIUM(6, 8),
+        HARD(9, MAX_LENGTH);
+
+        private final int minLength;
+        private final int maxLength;
+
+        Tier(int minLength, int maxLength) {
+            this.minLength = minLength;
+            this.maxLength = maxLength;
+        }
+
+        //Tier of the weakest player of the match, or the one set with -DwordScramble.wordTier
+        static Tier forPlayers(List<Player> players) {
+            for (Tier tier : values()) {
+                if (tier.name().equalsIgnoreCase(TIER)) {
+                    return tier;
+                }
+            }
+            Player.Ranking lowest = Player.Ranking.GOLD;
+            for (Player player : players) {
+                if (player.getRank().compareTo(lowest) < 0) {
+                    lowest = player.getRank();
+                }
+            }
+            switch (lowest) {
+                case BRONZE:
+                    return EASY;
+                case SILVER:
+                    return MEDIUM;
+                default:
+                    return HARD;
+            }
+        }
+    }
+
+    private static volatile WordDictionary instance;
+
+    //Scratch buffers of the thread picking words, a word is copied and shuffled there before becoming a String
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[MAX_LENGTH]);
+    private static final ThreadLocal<byte[]> shuffled = ThreadLocal.withInitial(() -> new byte[MAX_LENGTH]);
+
+    //Word list, mapped from the file or wrapping the built-in words
+    private final ByteBuffer words;
+    //Offsets of the words of each length
+    private final int[][] offsets;
+    private final int size;
+    private final int skipped;
+
+    private WordDictionary(ByteBuffer words) {
+        this.words = words;
+        //First pass counts the words of each length, the second one fills the index, nothing is resized
+        int[] counts = new int[MAX_LENGTH + 1];
+        int skipped = scan(words, null, counts);
+        this.offsets = new int[MAX_LENGTH + 1][];
+        int size = 0;
+        for (int length = 0; length <= MAX_LENGTH; length++) {
+            offsets[length] = new int[counts[length]];
+            size += counts[length];
+            counts[length] = 0;
+        }
+        scan(words, offsets, counts);
+        this.size = size;
+        this.skipped = skipped;
+    }
+
+    //Dictionary of the server, loaded on first use
+    public static WordDictionary get() {
+        WordDictionary dictionary = instance;
+        if (dictionary == null) {
+            synchronized (WordDictionary.class) {
+                dictionary = instance;
+                if (dictionary == null) {
+                    dictionary = instance = load(PATH);
+                }
+            }
+        }
+        return dictionary;
+    }
+
+    //Map a word list, or use the built-in words if it can not be read
+    public static WordDictionary load(Path path) {
+        long start = System.nanoTime();
+        WordDictionary dictionary;
+        if (Files.exists(path)) {
+            try {
+                dictionary = open(path);
+            } catch (IOException e) {
+                System.out.println("Failed to read the word list " + path + ", using the built-in words: " + e.getMessage());
+                dictionary = ofWords(WORDS);
+            }
+        } else {
+            System.out.println("No word list at " + path.toAbsolutePath().normalize() + ", using the built-in words");
+            dictionary = ofWords(WORDS);
+        }
+        if (dictionary.size == 0) {
+            System.out.println("No valid words in " + path + ", using the built-in words");
+            dictionary = ofWords(WORDS);
+        }
+        System.out.printf("Dictionary: %d words (%d lines skipped) loaded in %.1f ms%n",
+                dictionary.size, dictionary.skipped, (System.nanoTime() - start) / 1e6);
+        return dictionary;
+    }
+
+    //Word lists up to 2 GB, the offsets are ints
+    public static WordDictionary open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            //The mapping stays valid after the channel is closed
+            return new WordDictionary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    static WordDictionary ofWords(String[] words) {
+        return new WordDictionary(ByteBuffer.wrap(String.join("\n", words).getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    //Find the valid words, count them by length and, when offsets is given, save where they start
+    private static int scan(ByteBuffer words, int[][] offsets, int[] counts) {
+        int skipped = 0;
+        int limit = words.limit();
+        int start = 0;
+        while (start < limit) {
+            int end = start;
+            while (end < limit && words.get(end) != '\n') {
+                end++;
+            }
+            int length = end - start;
+            //Windows line endings
+            if (length > 0 && words.get(end - 1) == '\r') {
+                length--;
+            }
+            if (length == 0) {
+                //Empty line
+            } else if (length >= MIN_LENGTH && length <= MAX_LENGTH && canScramble(words, start, length)) {
+                if (offsets != null) {
+                    offsets[length][counts[length]] = start;
+                }
+                counts[length]++;
+            } else {
+                skipped++;
+            }
+            start = end + 1;
+        }
+        return skipped;
+    }
+
+    //Only lowercase letters, and at least two different ones
+    private static boolean canScramble(ByteBuffer words, int start, int length) {
+        byte first = words.get(start);
+        boolean differentLetters = false;
+        for (int i = start; i < start + length; i++) {
+            byte b = words.get(i);
+            if (b < 'a' || b > 'z') {
+                return false;
+            }
+            differentLetters |= b != first;
+        }
+        return differentLetters;
+    }
+
+    /**
+     * Picks a random word of the tier, or of the whole dictionary if the tier has none. No allocation.
+     * @return the word as offset and length, read with word and scramble
+     */
+    public long pick(Tier tier) {
+        int count = count(tier.minLength, tier.maxLength);
+        if (count == 0) {
+            return pick(MIN_LENGTH, MAX_LENGTH, ThreadLocalRandom.current().nextInt(size));
+        }
+        return pick(tier.minLength, tier.maxLength, ThreadLocalRandom.current().nextInt(count));
+    }
+
+    /**
+     * Picks different words of the tier (or of the whole dictionary if the tier has none), without replacement.
+     * @return count words, or every word of the tier if it has fewer
+     */
+    public long[] pickDistinct(Tier tier, int count) {
+        int minLength = tier.minLength, maxLength = tier.maxLength;
+        int available = count(minLength, maxLength);
+        if (available == 0) {
+            minLength = MIN_LENGTH;
+            maxLength = MAX_LENGTH;
+            available = size;
+        }
+        //Floyd's sampling: count different indexes out of available, one random number each
+        int[] indexes = new int[Math.min(count, available)];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0, j = available - indexes.length; i < indexes.length; i++, j++) {
+            int index = random.nextInt(j + 1);
+            for (int k = 0; k < i; k++) {
+                if (indexes[k] == index) {
+                    index = j;
+                    break;
+                }
+            }
+            indexes[i] = index;
+        }
+        long[] words = new long[indexes.length];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = pick(minLength, maxLength, indexes[i]);
+        }
+        return words;
+    }
+
+    private long pick(int minLength, int maxLength, int index) {
+        for (int length = minLength; length <= maxLength; length++) {
+            if (index < offsets[length].length) {
+                return ((long) offsets[length][index] << 8) | length;
+            }
+            index -= offsets[length].length;
+        }
+        throw new IllegalStateException("Empty dictionary");
+    }
+
+    private int count(int minLength, int maxLength) {
+        int count = 0;
+        for (int length = minLength; length <= maxLength; length++) {
+            count += offsets[length].length;
+        }
+        return count;
+    }
+
+    //Words of a tier
+    public int count(Tier tier) {
+        return count(tier.minLength, tier.maxLength);
+    }
+
+    public String word(long word) {
+        int length = (int) (word & 0xFF);
+        byte[] letters = scratch.get();
+        words.get((int) (word >>> 8), letters, 0, length);
+        return new String(letters, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    //Letters of the word in another order, never the word itself
+    public String scramble(long word) {
+        int length = (int) (word & 0xFF);
+        byte[] letters = scratch.get();
+        byte[] result = shuffled.get();
+        words.get((int) (word >>> 8), letters, 0, length);
+        scramble(letters, result, length);
+        return new String(result, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Shuffles the letters of the word into result (Fisher-Yates), no allocation.
+     * If the shuffle gives back the word, its first letter is swapped with a different one,
+     * so the result is never the word unless every letter is the same.
+     */
+    static void scramble(byte[] word, byte[] result, int length) {
+        System.arraycopy(word, 0, result, 0, length);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            byte b = result[i];
+            result[i] = result[j];
+            result[j] = b;
+        }
+        if (Arrays.equals(word, 0, length, result, 0, length)) {
+            for (int i = 1; i < length; i++) {
+                if (result[i] != result[0]) {
+                    result[i] = result[0];
+                    result[0] = word[i];
+                    return;
+                }
+            }
+        }
+    }
+
+    //Same as scramble(long) for any word, used for words that are not in the dictionary
+    public static String scramble(String word) {
+        int length = word.length();
+        boolean ascii = length <= MAX_LENGTH;
+        for (int i = 0; i < length && ascii; i++) {
+            ascii = word.charAt(i) < 0x80;
+        }
+        if (!ascii) {
+            //Not a dictionary word, shuffled as chars
+            char[] chars = word.toCharArray();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                char c = chars[i];
+                chars[i] = chars[j];
+                chars[j] = c;
+            }
+            return new String(chars);
+        }
+        byte[] letters = scratch.get();
+        byte[] result = shuffled.get();
+        for (int i = 0; i < length; i++) {
+            letters[i] = (byte) word.charAt(i);
+        }
+        scramble(letters, result, length);
+        return new String(result, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    //Every word of the dictionary, in file order by length
+    public void forEach(Consumer<String> action) {
+        for (int length = MIN_LENGTH; length <= MAX_LENGTH; length++) {
+            for (int offset : offsets[length]) {
+                action.accept(word(((long) offset << 8) | length));
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -1,23 +1,52 @@
 package cpd.g15.wordScramble;
 
 import java.io.IOException;
-import java.net.ConnectException;
-import java.net.SocketException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.*;
 
+/**
+ * State of one match. By default the game has no thread of its own: it is hosted by a GameLoop,
+ * which calls read when one of its players sends something.
+ * In the thread per game mode run plays the whole match with blocking reads instead.
+ *
+ * A match has -DwordScramble.rounds words (1 by default). They are all picked and scrambled when the match is made,
+ * so when a round is guessed the next word is sent right away, to the same players on the same game loop.
+ * The player who guessed the most rounds wins the match.
+ */
 public class WordScrambleRunnable implements Runnable {
 
-    private final String scrambledWord;
-    private final String selectedWord;
+    private static final int ROUNDS = Math.max(1, Integer.getInteger("wordScramble.rounds", 1));
+    //Warn once when a tier has fewer words than the rounds of a match
+    private static volatile boolean fewerRoundsWarned;
+    private static final Metrics.Counter ROUNDS_PLAYED = Metrics.counter("games.rounds", "Rounds guessed");
+    private static final Metrics.Counter BROADCASTS = Metrics.counter("games.broadcasts", "Messages sent to every player of a game");
+    private static final Metrics.Histogram BROADCAST_BYTES = Metrics.histogram("games.broadcast.bytes",
+            "Bytes allocated by the thread of the game per broadcast: one encoded frame, plus a view and its queueing per player");
+    //Allocation counter of the current thread, null if the JVM does not count allocations
+    private static final com.sun.management.ThreadMXBean THREADS =
+            ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads && threads.isThreadAllocatedMemorySupported()
+                    ? threads : null;
+
+    //Words of every round, prepared before the match starts
+    private final String[] scrambledWords;
+    private final String[] selectedWords;
+    private int round;
+    //Rounds guessed by each player and the round of their last one, to break ties
+    private final int[] roundsWon;
+    private final int[] lastRoundWon;
 
     private final Queue queue;
 
     private Selector selector;
+    private Runnable onEnd;
 
     private boolean gameOver;
+    private boolean ended;
 
     private final ArrayList<Player> players;
     private static final int ELO_INCREASE = 100;
@@ -26,104 +55,230 @@ public class WordScrambleRunnable implements Runnable {
     private final Set<SocketChannel> readyPlayers = new HashSet<>();
     private final Set<SocketChannel> disconnectedPlayers = new HashSet<>();
 
-    private final String[] words = {"apple", "banana", "orange", "grape", "kiwi", "mango", "strawberry", "blueberry", "watermelon", "pineapple", "cherry", "lemon", "lime", "peach", "pear"};
+    private volatile long broadcastCount;
 
 
     public WordScrambleRunnable(ArrayList<Player> players, Queue queue) {
         this.players = players;
-        this.selectedWord = words[new Random().nextInt(words.length)];
-        this.scrambledWord = scrambleWord(this.selectedWord);
+        //Words of the tier of the weakest player, read from the mapped word list
+        WordDictionary dictionary = WordDictionary.get();
+        WordDictionary.Tier tier = WordDictionary.Tier.forPlayers(players);
+        //Every round has a different word, a tier with fewer words than rounds plays fewer rounds
+        long[] picked = dictionary.pickDistinct(tier, ROUNDS);
+        if (picked.length < ROUNDS && !fewerRoundsWarned) {
+            fewerRoundsWarned = true;
+            System.out.println("Only " + picked.length + " words for " + ROUNDS + " rounds in tier " + tier + ", matches play " + picked.length + " rounds");
+        }
+        this.selectedWords = new String[picked.length];
+        this.scrambledWords = new String[picked.length];
+        for (int i = 0; i < picked.length; i++) {
+            this.selectedWords[i] = dictionary.word(picked[i]);
+            this.scrambledWords[i] = dictionary.scramble(picked[i]);
+        }
+        this.roundsWon = new int[players.size()];
+        this.lastRoundWon = new int[players.size()];
         this.gameOver = false;
         this.queue =  queue;
     }
 
+    //Register the players with the selector of the game loop and start the match
+    public synchronized void start(Selector selector) throws IOException {
+        System.out.println("Game started");
+        this.selector = selector;
+        registerSocketChannels(selector);
+    }
+
+    //Thread per game mode: one thread per player blocks reading its messages until every player left
     @Override
     public void run() {
         System.out.println("Game started");
+        ArrayList<Thread> readers = new ArrayList<>();
         try {
-            Selector selector = Selector.open();
-            this.selector = selector;
-            registerSocketChannels(selector);
-
-            while(disconnectedPlayers.size() != players.size()){
-                selector.select();
-                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-                while (iterator.hasNext()){
-                    SelectionKey key = iterator.next();
-                    iterator.remove();
-
-                    if(!key.isValid()){
-                        continue;
-                    }
-                    if(key.isReadable()){
-                        read(key);
+            synchronized (this) {
+                for (Player player : players) {
+                    Session session = player.getSession();
+                    session.setGame(this);
+                    try {
+                        session.useBlocking();
+                        readers.add(GameThreads.newThread(() -> readUntilLeft(session)));
+                    } catch (ClosedChannelException e) {
+                        //Player disconnected after being matched
+                        disconnectedPlayers.add(session.getChannel());
+                        Server.playerDatabase.disconnectPlayer(player);
                     }
                 }
+                broadcastGameStart();
             }
-            Server.currentGames.remove(this);
-
+            for (Thread reader : readers) {
+                reader.start();
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            System.out.println("Game error: " + e.getMessage());
+        } finally {
+            end();
+        }
+    }
+
+    private void readUntilLeft(Session session) {
+        while (!hasLeft(session.getChannel())) {
+            try {
+                read(session);
+            } catch (IOException e) {
+                connectionLost(session);
+            } catch (RuntimeException e) {
+                System.out.println("Game error: " + e);
+                abort();
+            }
         }
+    }
+
+    //Every player left the game (disconnected, quit or went back to the queue)
+    public synchronized boolean isFinished(){
+        return disconnectedPlayers.size() == players.size();
+    }
 
+    private synchronized boolean hasLeft(SocketChannel clientChannel){
+        return disconnectedPlayers.contains(clientChannel);
     }
 
-    private void read(SelectionKey key) throws IOException {
-        SocketChannel clientChannel = (SocketChannel) key.channel();
-        Message message = null;
+    //Called once the game ended, frees the game slot
+    public void setOnEnd(Runnable onEnd){
+        this.onEnd = onEnd;
+    }
+
+    /**
+     * Releases the game once finished.
+     * @return false if the game had already ended
+     */
+    public synchronized boolean end(){
+        if(ended){
+            return false;
+        }
+        ended = true;
+        if(onEnd != null){
+            onEnd.run();
+        }
+        return true;
+    }
+
+    public void read(SelectionKey key) throws IOException {
+        read((Session) key.attachment());
+    }
+
+    //Read and handle what the player sent, the read blocks in the thread per game mode so it is done outside the game lock
+    private void read(Session session) throws IOException {
+        SocketChannel clientChannel = session.getChannel();
+        boolean open;
         try {
-            message = Message.readObject(clientChannel);
-        }catch (ConnectException e){
-            broadcastSomeoneDisconnected(clientChannel);
-            clientChannel.close();
-            Player.PlayerDatabase.getPlayerByChannel(clientChannel).isLoggedIn = false;
-        }catch (SocketException e){
-            broadcastSomeoneDisconnected(clientChannel);
-            clientChannel.close();
-            Player.PlayerDatabase.getPlayerByChannel(clientChannel).isLoggedIn = false;
+            //Read everything available, it can contain several messages or only part of one
+            open = session.read();
+        }catch (IOException e){
+            connectionLost(session);
             return;
-        }catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
         }
-        //Deal with client disconnected
-        if(message == null){
-            System.out.println("Client disconnected");
-            disconnectedPlayers.add(clientChannel);
-            clientChannel.close();
-            Player.PlayerDatabase.getPlayerByChannel(clientChannel).isLoggedIn = false;
 
+        synchronized (this) {
+            while (true){
+                Message message;
+                try {
+                    message = session.nextMessage();
+                }catch (IOException e){
+                    connectionLost(session);
+                    return;
+                }
+                if(message == null){
+                    break;
+                }
+                dealWithMessage(message,session);
+                //Channel was closed or handed back to the queue
+                if(hasLeft(clientChannel)){
+                    return;
+                }
+            }
+
+            //Deal with client disconnected
+            if(!open){
+                System.out.println("Client disconnected");
+                disconnectedPlayers.add(clientChannel);
+                clientChannel.close();
+                Server.playerDatabase.disconnectPlayer(session.getPlayer());
+            }
+        }
+    }
+
+    public synchronized void connectionLost(Session session) {
+        SocketChannel clientChannel = session.getChannel();
+        if(hasLeft(clientChannel)){
             return;
         }
-        dealWithMessage(message,clientChannel);
+        //Count the player as gone so the game can finish
+        disconnectedPlayers.add(clientChannel);
+        Server.playerDatabase.disconnectPlayer(session.getPlayer());
+        try {
+            broadcastSomeoneDisconnected(clientChannel);
+            clientChannel.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close connection: " + e.getMessage());
+        }
+    }
+
+    //Game in an unexpected state: close the connections of the players still in it, so the game finishes
+    public synchronized void abort() {
+        for (Player player : players) {
+            Session session = player.getSession();
+            //Players that left may already be in another game
+            if (session == null || session.getGame() != this || hasLeft(session.getChannel())) {
+                continue;
+            }
+            SocketChannel clientChannel = session.getChannel();
+            disconnectedPlayers.add(clientChannel);
+            Server.playerDatabase.disconnectPlayer(player);
+            try {
+                clientChannel.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close connection: " + e.getMessage());
+            }
+        }
     }
 
-    private void dealWithMessage(Message message, SocketChannel clientChannel) throws IOException {
+    private void dealWithMessage(Message message, Session session) throws IOException {
+        SocketChannel clientChannel = session.getChannel();
         Message messageToSend;
         switch (message.getType()){
             case GAME_START_READY:
                 readyPlayers.add(clientChannel);
                 if(readyPlayers.size() == players.size()){
-                    for(Player p : players){
-                        messageToSend = new Message(Message.Type.GAME_SERVER_GET_NEW_WORD, "Guess Word:");
-                        messageToSend.writeObject(p.getChannel());
-                    }
+                    broadcast(new Message(Message.Type.GAME_SERVER_GET_NEW_WORD, "Guess Word:"), null);
                 }
                 break;
             //Receive guess from client
             case GAME_CLIENT_WORD:
-                if (!gameOver) {
+                if (message.getObject() == null) {
+                    //Nothing to check, ask again
+                    new Message(Message.Type.GAME_SERVER_GET_NEW_WORD, "Guess Word:").writeObject(session);
+                } else if (!gameOver) {
                     //Check if word is correct
-                    if (message.getObject().toString().equals(selectedWord)) {
-                        this.gameOver = true;
-                        //Broadcast that someone won to everyone minus the winner
-                        broadcastWinner(clientChannel);
-                        //Send message to winner
-                        messageToSend = new Message(Message.Type.GAME_SERVER_CORRECT_WORD, "You guessed the word! The word was: " + selectedWord + "\nPlay again?(y/n)");
+                    if (message.getObject().toString().equals(selectedWords[round])) {
+                        ROUNDS_PLAYED.increment();
+                        int guesser = players.indexOf(session.getPlayer());
+                        roundsWon[guesser]++;
+                        lastRoundWon[guesser] = round;
+                        if (round + 1 < selectedWords.length) {
+                            nextRound(session);
+                        } else {
+                            this.gameOver = true;
+                            broadcastWinner(session);
+                        }
                     } else {
                         //Send message to loser
                         messageToSend = new Message(Message.Type.GAME_SERVER_GET_NEW_WORD, "You guessed the word incorrectly!");
+                        messageToSend.writeObject(session);
                     }
-                    messageToSend.writeObject(clientChannel);
                 }
                 break;
             case GAME_CLIENT_QUIT_IN_GAME:
@@ -133,20 +288,22 @@ public class WordScrambleRunnable implements Runnable {
             //Receive play again from client
             case GAME_CLIENT_PLAY_AGAIN:
                 disconnectedPlayers.add(clientChannel);
-                // Unregister player channel from queue
-                SelectionKey key = clientChannel.keyFor(selector);
-                if(key != null){
-                    key.cancel();
+                // Unregister player channel from the game loop
+                if(selector != null){
+                    SelectionKey key = clientChannel.keyFor(selector);
+                    if(key != null){
+                        key.cancel();
+                    }
                 }
                 //Add player to queue
-                queue.addPlayerToQueueAndRegisterChannel(Player.PlayerDatabase.getPlayerByChannel(clientChannel).getUsername(),clientChannel);
+                queue.addPlayerToQueueAndRegisterChannel(session);
 
                 break;
             case GAME_CLIENT_QUIT:
                 disconnectedPlayers.add(clientChannel);
                 System.out.println("Player disconnected");
                 //Close connection (logout)
-                Server.playerDatabase.signOutPlayer(Player.PlayerDatabase.getPlayerByChannel(clientChannel).getUsername());
+                Server.playerDatabase.signOutPlayer(session.getPlayer().getUsername());
                 clientChannel.close();
                 break;
         }
@@ -154,35 +311,113 @@ public class WordScrambleRunnable implements Runnable {
 
     private void broadcastSomeoneDisconnected(SocketChannel disconnectChannel) throws IOException {
         Message disconnectMessage = new Message(Message.Type.GAME_SERVER_PLAYER_DISCONNECTED,"Someone disconnected. Game ended.\nPlay again?(y/n)");
+        broadcast(disconnectMessage, disconnectChannel);
+    }
+
+    //Encode message once and send it to every player except the excluded channel (can be null)
+    private void broadcast(Message message, SocketChannel excludedChannel) throws IOException {
+        long allocatedBefore = allocatedBytes();
+        ByteBuffer frame = message.encodeShared();
+        broadcastCount++;
+        BROADCASTS.increment();
         for(Player player:players){
-            if(!player.getChannel().equals(disconnectChannel)){
-                disconnectMessage.writeObject(player.getChannel());
+            //The channel is null once the player signed out
+            SocketChannel channel = player.getChannel();
+            if(channel != null && !channel.equals(excludedChannel)){
+                player.getSession().sendFrame(message.getType(), frame);
             }
         }
+        if(allocatedBefore >= 0){
+            BROADCAST_BYTES.record(allocatedBytes() - allocatedBefore);
+        }
+    }
+
+    //Bytes allocated so far by the current thread, -1 if not counted
+    private static long allocatedBytes(){
+        return THREADS != null && THREADS.isThreadAllocatedMemoryEnabled() ? THREADS.getCurrentThreadAllocatedBytes() : -1;
     }
 
 
     public void registerSocketChannels(Selector selector) throws IOException {
         for(Player player : players){
-            SocketChannel clientChannel = player.getChannel();
-            clientChannel.register(selector, SelectionKey.OP_READ);
-            Message startGame = new Message(Message.Type.GAME_START,"Game starting!\n" + "Scramble Word: " + scrambledWord);
-            startGame.writeObject(clientChannel);
-            System.out.println("startGame sent to player: " + player.getUsername() );
+            Session session = player.getSession();
+            session.setGame(this);
+            try {
+                session.register(selector);
+            } catch (ClosedChannelException e) {
+                //Player disconnected after being matched
+                disconnectedPlayers.add(session.getChannel());
+                Server.playerDatabase.disconnectPlayer(player);
+            }
         }
+        broadcastGameStart();
     }
 
-    public void broadcastWinner(SocketChannel winnerChannel) throws IOException {
-        Player p = Player.PlayerDatabase.getPlayerByChannel(winnerChannel);
-        Message winMessage = new Message(Message.Type.GAME_SERVER_PLAYER_WON, "You lost!\nPlayer " + p.getUsername()+ " won\n"+ "The word was: "+ this.selectedWord + "\nPlay again?(y/n)");
-        for(Player player:players){
-            if(!player.getChannel().equals(winnerChannel)){
-                winMessage.writeObject(player.getChannel());
-                player.setElo(player.getElo() - ELO_DECREASE );
-                player.updateRank();
+    private void broadcastGameStart() throws IOException {
+        String rounds = selectedWords.length > 1 ? "Round 1/" + selectedWords.length + "\n" : "";
+        Message startGame = new Message(Message.Type.GAME_START,"Game starting!\n" + rounds + "Scramble Word: " + scrambledWords[0]);
+        broadcast(startGame, null);
+        System.out.println("startGame sent to " + players.size() + " players");
+    }
+
+    //Send the word of the next round to everyone, it was scrambled when the match was made
+    private void nextRound(Session roundWinner) throws IOException {
+        String guessed = selectedWords[round];
+        round++;
+        Message nextRound = new Message(Message.Type.GAME_SERVER_NEXT_ROUND, "Player " + roundWinner.getPlayer().getUsername() + " guessed " + guessed
+                + "\nRounds won: " + scores() + "\nRound " + (round + 1) + "/" + selectedWords.length + "\nScramble Word: " + scrambledWords[round]);
+        broadcast(nextRound, null);
+    }
+
+    //Player with the most rounds guessed, the first to get there if tied
+    private int matchWinner() {
+        int winner = 0;
+        for (int i = 1; i < players.size(); i++) {
+            if (roundsWon[i] > roundsWon[winner] || (roundsWon[i] == roundsWon[winner] && lastRoundWon[i] < lastRoundWon[winner])) {
+                winner = i;
+            }
+        }
+        return winner;
+    }
+
+    private String scores() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < players.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(players.get(i).getUsername()).append(' ').append(roundsWon[i]);
+        }
+        return sb.toString();
+    }
+
+    //Last round guessed: tell everyone who won the match and update the ratings
+    public void broadcastWinner(Session lastGuesser) throws IOException {
+        int winner = matchWinner();
+        Player p = players.get(winner);
+        SocketChannel winnerChannel = p.getChannel();
+        String result = "The word was: " + selectedWords[round] + (selectedWords.length > 1 ? "\nRounds won: " + scores() : "");
+        Message winMessage = new Message(Message.Type.GAME_SERVER_PLAYER_WON, "You lost!\nPlayer " + p.getUsername()+ " won\n"+ result + "\nPlay again?(y/n)");
+        broadcast(winMessage, winnerChannel);
+        //Send message to winner, unless they already left the match
+        if(!hasLeft(winnerChannel)){
+            String won = lastGuesser.getPlayer() == p ? "You guessed the word! " : "You won the match! ";
+            new Message(Message.Type.GAME_SERVER_CORRECT_WORD, won + result + "\nPlay again?(y/n)").writeObject(p.getSession());
+        }
+
+        //The winner gains ELO_INCREASE, the others lose ELO_DECREASE less their share of the rounds guessed
+        for (int i = 0; i < players.size(); i++) {
+            Player player = players.get(i);
+            if(i != winner){
+                player.setElo(player.getElo() - ELO_DECREASE + ELO_DECREASE * roundsWon[i] / selectedWords.length);
+                player.addLoss();
             }else{
                 player.setElo(player.getElo() + ELO_INCREASE);
+                player.addWin();
             }
+            player.updateRank();
+            //Persist new rating
+            Server.playerDatabase.saveRating(player);
         }
     }
 
@@ -190,16 +425,11 @@ public class WordScrambleRunnable implements Runnable {
         return players;
     }
 
+    public long getBroadcastCount(){
+        return broadcastCount;
+    }
+
     public static String scrambleWord(String word) {
-        List<Character> chars = new ArrayList<>();
-        for (char c : word.toCharArray()) {
-            chars.add(c);
-        }
-        Collections.shuffle(chars);
-        StringBuilder sb = new StringBuilder();
-        for (char c : chars) {
-            sb.append(c);
-        }
-        return sb.toString();
+        return WordDictionary.scramble(word);
     }
 }
\ No newline at end of file